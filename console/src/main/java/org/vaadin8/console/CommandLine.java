@@ -0,0 +1,615 @@
+package org.vaadin8.console;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parsed command line.
+ *
+ * The grammar is a subset of the shell's:
+ *
+ * <pre>
+ * line     := pipeline ((';' | '&amp;&amp;' | '||') pipeline)* [';'] ['&amp;']
+ * pipeline := command ('|' command)* ['&gt;' file]
+ * command  := word+
+ * </pre>
+ *
+ * Words are separated by spaces. Text in double or single quotes is part of
+ * a word, including spaces and operators.
+ *
+ * The stages of a pipeline pass their output line by line to the next stage.
+ * A {@link Console.StreamingCommand} processes each line as it is written.
+ * Other commands ignore their input, and their output, whether printed or
+ * returned, is split into lines. The job control builtins are only run as a
+ * command of their own.
+ *
+ * @see Console#setRedirectDirectory(java.io.File)
+ */
+public class CommandLine implements Serializable {
+
+	private static final long serialVersionUID = -3264119484906331736L;
+
+	private static final ThreadLocal<Capture> CAPTURE = new ThreadLocal<Capture>();
+
+	/**
+	 * Operator joining a pipeline to the previous one.
+	 */
+	public enum Operator {
+
+		/** <code>;</code> runs the pipeline after the previous one. */
+		SEQUENCE(";"),
+
+		/** <code>&amp;&amp;</code> runs the pipeline if the previous succeeded. */
+		AND("&&"),
+
+		/** <code>||</code> runs the pipeline if the previous failed. */
+		OR("||");
+
+		private final String text;
+
+		private Operator(final String text) {
+			this.text = text;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	private final String text;
+	private final List<Pipeline> pipelines;
+	private final boolean background;
+
+	private CommandLine(final String text, final List<Pipeline> pipelines, final boolean background) {
+		this.text = text;
+		this.pipelines = pipelines;
+		this.background = background;
+	}
+
+	/**
+	 * Parse a command line.
+	 *
+	 * @param input
+	 * @return the parsed command line, empty for blank input
+	 * @throws IllegalArgumentException
+	 *             on a syntax error
+	 */
+	public static CommandLine parse(final String input) {
+		final List<Token> tokens = tokenize(input);
+		final List<Pipeline> pipelines = new ArrayList<Pipeline>();
+		boolean background = false;
+		Operator operator = null;
+		List<String[]> stages = new ArrayList<String[]>();
+		List<String> words = new ArrayList<String>();
+		String redirect = null;
+		for (int i = 0; i < tokens.size(); i++) {
+			final Token token = tokens.get(i);
+			if (!token.operator) {
+				if (redirect != null) {
+					throw syntaxError(token.text);
+				}
+				words.add(token.text);
+			} else if (">".equals(token.text)) {
+				if (words.isEmpty() || redirect != null || i + 1 == tokens.size() || tokens.get(i + 1).operator) {
+					throw syntaxError(token.text);
+				}
+				redirect = tokens.get(++i).text;
+			} else if ("|".equals(token.text)) {
+				if (words.isEmpty() || redirect != null) {
+					throw syntaxError(token.text);
+				}
+				stages.add(words.toArray(new String[words.size()]));
+				words = new ArrayList<String>();
+			} else if ("&".equals(token.text)) {
+				if (i + 1 < tokens.size() || words.isEmpty() && pipelines.isEmpty()) {
+					throw syntaxError(token.text);
+				}
+				background = true;
+			} else {
+				if (words.isEmpty()) {
+					throw syntaxError(token.text);
+				}
+				stages.add(words.toArray(new String[words.size()]));
+				pipelines.add(new Pipeline(operator, stages, redirect));
+				operator = toOperator(token.text);
+				stages = new ArrayList<String[]>();
+				words = new ArrayList<String>();
+				redirect = null;
+			}
+		}
+		if (!words.isEmpty()) {
+			stages.add(words.toArray(new String[words.size()]));
+			pipelines.add(new Pipeline(operator, stages, redirect));
+		} else if (!stages.isEmpty() || operator != null && operator != Operator.SEQUENCE) {
+			throw new IllegalArgumentException("syntax error: unexpected end of line");
+		}
+		String text = input != null ? input.trim() : "";
+		if (background) {
+			text = text.substring(0, text.length() - 1).trim();
+		}
+		return new CommandLine(text, pipelines, background);
+	}
+
+	/**
+	 * Split a command line into words and operators. An unterminated quote
+	 * ends with the line.
+	 */
+	static List<Token> tokenize(final String input) {
+		final List<Token> tokens = new ArrayList<Token>();
+		if (input == null) {
+			return tokens;
+		}
+		final StringBuilder word = new StringBuilder();
+		boolean inWord = false;
+		int i = 0;
+		while (i < input.length()) {
+			final char c = input.charAt(i);
+			if (c == '"' || c == '\'') {
+				final int end = input.indexOf(c, i + 1);
+				word.append(input, i + 1, end >= 0 ? end : input.length());
+				inWord = true;
+				i = end >= 0 ? end + 1 : input.length();
+				continue;
+			}
+			if (Character.isWhitespace(c) || isOperatorChar(c)) {
+				if (inWord) {
+					tokens.add(new Token(word.toString(), false));
+					word.setLength(0);
+					inWord = false;
+				}
+				if (isOperatorChar(c)) {
+					// '||' and '&&' are single operators
+					final boolean doubled = (c == '|' || c == '&') && i + 1 < input.length() && input.charAt(i + 1) == c;
+					tokens.add(new Token(doubled ? input.substring(i, i + 2) : String.valueOf(c), true));
+					i += doubled ? 2 : 1;
+					continue;
+				}
+			} else {
+				word.append(c);
+				inWord = true;
+			}
+			i++;
+		}
+		if (inWord) {
+			tokens.add(new Token(word.toString(), false));
+		}
+		return tokens;
+	}
+
+	private static boolean isOperatorChar(final char c) {
+		return c == '|' || c == '&' || c == ';' || c == '>';
+	}
+
+	private static Operator toOperator(final String text) {
+		for (final Operator operator : Operator.values()) {
+			if (operator.getText().equals(text)) {
+				return operator;
+			}
+		}
+		throw syntaxError(text);
+	}
+
+	private static IllegalArgumentException syntaxError(final String token) {
+		return new IllegalArgumentException("syntax error near '" + token + "'");
+	}
+
+	/**
+	 * @return the command line without a trailing <code>&amp;</code>
+	 */
+	public String getText() {
+		return text;
+	}
+
+	public List<Pipeline> getPipelines() {
+		return Collections.unmodifiableList(pipelines);
+	}
+
+	/**
+	 * @return true if the command line ends with <code>&amp;</code>
+	 */
+	public boolean isBackground() {
+		return background;
+	}
+
+	public boolean isEmpty() {
+		return pipelines.isEmpty();
+	}
+
+	/**
+	 * @return true for a single command without pipes or redirection
+	 */
+	public boolean isSimple() {
+		return pipelines.size() == 1 && pipelines.get(0).stages.size() == 1 && pipelines.get(0).redirect == null;
+	}
+
+	/**
+	 * @return the words of the first command
+	 */
+	public String[] getArgv() {
+		return pipelines.isEmpty() ? new String[] {} : pipelines.get(0).stages.get(0);
+	}
+
+	/**
+	 * Run the pipelines in the current thread, each depending on the operator
+	 * before it. Stops when the thread is interrupted.
+	 *
+	 * @param console
+	 * @return true if the last pipeline run succeeded
+	 */
+	boolean execute(final Console console) {
+		boolean status = true;
+		for (final Pipeline pipeline : pipelines) {
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			if (pipeline.operator == Operator.AND && !status || pipeline.operator == Operator.OR && status) {
+				continue;
+			}
+			status = pipeline.execute(console);
+		}
+		return status;
+	}
+
+	/**
+	 * @return the output printed in the current thread by a command in a
+	 *         pipeline, or null
+	 */
+	static Capture getCapture() {
+		return CAPTURE.get();
+	}
+
+	/**
+	 * Commands connected with pipes, and the file their output is
+	 * redirected to.
+	 */
+	public static class Pipeline implements Serializable {
+
+		private static final long serialVersionUID = 6874183650392227718L;
+
+		private final Operator operator;
+		private final List<String[]> stages;
+		private final String redirect;
+
+		Pipeline(final Operator operator, final List<String[]> stages, final String redirect) {
+			this.operator = operator;
+			this.stages = stages;
+			this.redirect = redirect;
+		}
+
+		/**
+		 * @return the operator joining this pipeline to the previous one, or
+		 *         null for the first
+		 */
+		public Operator getOperator() {
+			return operator;
+		}
+
+		/**
+		 * @return the words of each command
+		 */
+		public List<String[]> getStages() {
+			return Collections.unmodifiableList(stages);
+		}
+
+		/**
+		 * @return the file name after <code>&gt;</code>, or null
+		 */
+		public String getRedirect() {
+			return redirect;
+		}
+
+		/**
+		 * @return true if all commands completed without exception
+		 */
+		boolean execute(final Console console) {
+			final Console.Command[] commands = new Console.Command[stages.size()];
+			for (int i = 0; i < commands.length; i++) {
+				commands[i] = console.getCommand(stages.get(i)[0]);
+				if (commands[i] == null && console.getJobExecutor() != null
+						&& JobControl.BUILTINS.contains(stages.get(i)[0])) {
+					// Only run with the session locked
+					console.println("ERROR: " + stages.get(i)[0] + ": only allowed as a command of its own");
+					return false;
+				}
+				if (commands[i] == null) {
+					console.getHandler().commandNotFound(console, stages.get(i));
+					return false;
+				}
+			}
+			if (commands.length == 1 && redirect == null && !(commands[0] instanceof Console.StreamingCommand)) {
+				// Same as without pipes
+				try {
+					final Object r = commands[0].execute(console, stages.get(0));
+					if (r != null) {
+						console.print("" + r);
+					}
+					return true;
+				} catch (final Exception e) {
+					console.getHandler().handleException(console, e, commands[0], stages.get(0));
+					return false;
+				}
+			}
+
+			Writer writer = null;
+			final Console.LineConsumer output;
+			if (redirect != null) {
+				try {
+					writer = console.openRedirect(redirect);
+				} catch (final IOException e) {
+					console.println("ERROR: " + redirect + ": " + e.getMessage());
+					return false;
+				}
+				output = new FileLines(writer);
+			} else {
+				output = new ConsoleLines(console);
+			}
+			final Guard[] guards = new Guard[commands.length];
+			try {
+				// Open from the last, so that each stage can write to the next
+				Console.LineConsumer next = output;
+				for (int i = commands.length - 1; i >= 0; i--) {
+					guards[i] = new Guard(guards, i);
+					guards[i].open(console, commands[i], stages.get(i), next);
+					next = guards[i];
+				}
+				// Then run in order, each stage after the input is complete
+				for (final Guard guard : guards) {
+					guard.run(console);
+					guard.close();
+				}
+				return true;
+			} catch (final Exception e) {
+				int failed = 0;
+				for (int i = 0; i < guards.length; i++) {
+					if (guards[i] != null && guards[i].failed) {
+						failed = i;
+						break;
+					}
+				}
+				console.getHandler().handleException(console, e, commands[failed], stages.get(failed));
+				return false;
+			} finally {
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (final IOException e) {
+						console.println("ERROR: " + redirect + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A stage of a running pipeline, recording whether it failed.
+	 */
+	private static class Guard implements Console.Stage {
+
+		/** Stage of a command that does not stream. */
+		private static final Console.Stage IGNORE_INPUT = new Console.Stage() {
+
+			@Override
+			public void accept(final String line) {
+				// Input is ignored
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+
+		private final Guard[] guards;
+		private final int index;
+		private Console.Stage stage;
+		private Console.Command plain;
+		private String[] argv;
+		private Console.LineConsumer output;
+		private boolean failed;
+
+		Guard(final Guard[] guards, final int index) {
+			this.guards = guards;
+			this.index = index;
+		}
+
+		void open(final Console console, final Console.Command cmd, final String[] argv, final Console.LineConsumer output)
+				throws Exception {
+			try {
+				if (cmd instanceof Console.StreamingCommand) {
+					stage = ((Console.StreamingCommand) cmd).open(console, argv, output);
+				} else {
+					// Run in its turn
+					plain = cmd;
+					this.argv = argv;
+					this.output = output;
+					stage = IGNORE_INPUT;
+				}
+			} catch (final Exception e) {
+				fail();
+				throw e;
+			}
+		}
+
+		/**
+		 * Run the command if it does not stream.
+		 */
+		void run(final Console console) throws Exception {
+			if (plain == null) {
+				return;
+			}
+			try {
+				runPlain(console, plain, argv, output);
+			} catch (final Exception e) {
+				fail();
+				throw e;
+			}
+		}
+
+		@Override
+		public void accept(final String line) throws Exception {
+			try {
+				stage.accept(line);
+			} catch (final Exception e) {
+				fail();
+				throw e;
+			}
+		}
+
+		@Override
+		public void close() throws Exception {
+			try {
+				stage.close();
+			} catch (final Exception e) {
+				fail();
+				throw e;
+			}
+		}
+
+		/**
+		 * Record the failure, unless a later stage failed first.
+		 */
+		private void fail() {
+			for (int i = index + 1; i < guards.length; i++) {
+				if (guards[i] != null && guards[i].failed) {
+					return;
+				}
+			}
+			failed = true;
+		}
+
+		/**
+		 * Run a command that does not stream, writing its output to the next
+		 * stage.
+		 */
+		private static void runPlain(final Console console, final Console.Command cmd, final String[] argv,
+				final Console.LineConsumer output) throws Exception {
+			final Capture previous = CAPTURE.get();
+			final Capture capture = new Capture(output);
+			CAPTURE.set(capture);
+			try {
+				final Object r = cmd.execute(console, argv);
+				if (r != null) {
+					capture.print("" + r, false);
+				}
+				capture.flush();
+			} catch (final CaptureException e) {
+				throw (Exception) e.getCause();
+			} finally {
+				CAPTURE.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Output printed by a command in a pipeline, split into lines.
+	 */
+	static class Capture {
+
+		private final Console.LineConsumer output;
+		private final StringBuilder line = new StringBuilder();
+
+		Capture(final Console.LineConsumer output) {
+			this.output = output;
+		}
+
+		void print(final String text, final boolean newLine) {
+			final String s = text == null ? "" : newLine ? text + "\n" : text;
+			int start = 0;
+			for (int i = s.indexOf('\n'); i >= 0; i = s.indexOf('\n', start)) {
+				line.append(s, start, i);
+				writeLine();
+				start = i + 1;
+			}
+			line.append(s, start, s.length());
+		}
+
+		void flush() {
+			if (line.length() > 0) {
+				writeLine();
+			}
+		}
+
+		private void writeLine() {
+			final String s = line.toString();
+			line.setLength(0);
+			try {
+				output.accept(s);
+			} catch (final CaptureException e) {
+				throw e;
+			} catch (final Exception e) {
+				throw new CaptureException(e);
+			}
+		}
+	}
+
+	/**
+	 * Exception of a later stage, passed through the print methods of the
+	 * console.
+	 */
+	private static class CaptureException extends RuntimeException {
+
+		private static final long serialVersionUID = -2512000812553736617L;
+
+		CaptureException(final Exception cause) {
+			super(cause);
+		}
+	}
+
+	/**
+	 * Output of the last stage, printed to the console.
+	 */
+	private static class ConsoleLines implements Console.LineConsumer {
+
+		private final Console console;
+
+		ConsoleLines(final Console console) {
+			this.console = console;
+		}
+
+		@Override
+		public void accept(final String line) {
+			// Not captured by the stage printing it
+			final Capture capture = CAPTURE.get();
+			CAPTURE.remove();
+			try {
+				console.println(line);
+			} finally {
+				if (capture != null) {
+					CAPTURE.set(capture);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Output of the last stage, redirected to a file.
+	 */
+	private static class FileLines implements Console.LineConsumer {
+
+		private final Writer writer;
+
+		FileLines(final Writer writer) {
+			this.writer = writer;
+		}
+
+		@Override
+		public void accept(final String line) throws IOException {
+			writer.write(line);
+			writer.write('\n');
+		}
+	}
+
+	static class Token {
+
+		final String text;
+		final boolean operator;
+
+		Token(final String text, final boolean operator) {
+			this.text = text;
+			this.operator = operator;
+		}
+	}
+}
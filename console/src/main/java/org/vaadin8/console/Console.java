@@ -1,15 +1,38 @@
 package org.vaadin8.console;
 
+import com.vaadin.server.SessionDestroyEvent;
+import com.vaadin.server.SessionDestroyListener;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.Registration;
 import com.vaadin.ui.Component;
+import com.vaadin.ui.HasComponents;
+import com.vaadin.ui.SelectiveRenderer;
+import com.vaadin.util.ReflectTools;
 import org.vaadin8.console.ansi.ANSICodeConverter;
+import org.vaadin8.console.ansi.ANSITokenizer;
 import org.vaadin8.console.ansi.DefaultANSICodeConverter;
 import org.vaadin8.console.client.ConsoleClientRpc;
 import org.vaadin8.console.client.ConsoleServerRpc;
 import org.vaadin8.console.client.ConsoleState;
 
 import java.io.*;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is the server-side UI component that provides public API for Console.
@@ -29,33 +52,33 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		private static final long serialVersionUID = 443398479527027435L;
 
 		@Override
-		public void setHeight(String height) {
-			console.setHeight(height);
+		public void resized(int cols, int rows, String width, String height) {
+			handleResize(cols, rows, width, height);
 		}
 
 		@Override
-		public void setWidth(String width) {
-			console.setWidth(width);
+		public void input(String input) {
+			handleInput(input);
 		}
 
 		@Override
-		public void setCols(int cols) {
-			config.cols = cols;
+		public void suggest(String input) {
+			handleSuggest(input);
 		}
 
 		@Override
-		public void setRows(int rows) {
-			config.rows = rows;
+		public void requestLines(long beforeLine, int count) {
+			writePage(beforeLine, count);
 		}
 
 		@Override
-		public void input(String input) {
-			handleInput(input);
+		public void rendered(long sequence) {
+			acknowledge(sequence);
 		}
 
 		@Override
-		public void suggest(String input) {
-			handleSuggest(input);
+		public void cancel() {
+			cancelCommand();
 		}
 	};
 
@@ -72,46 +95,381 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 		// setCols(getCols());
 		// setRows(getRows());
-		setMaxBufferSize(getMaxBufferSize());
-		setWrap(isWrap());
-		setPrintPromptOnInput(isPrintPromptOnInput());
-		setScrollLock(isScrollLock());
-		setGreeting(getGreeting());
-		setPs(getPs());
 		reset();
 	}
 
+	/**
+	 * Get the client RPC proxy. Any buffered output is sent first to keep the
+	 * order of calls.
+	 * 
+	 * Calls are discarded while the console cannot be shown, instead of being
+	 * queued without bound. The client is restored from the scrollback when
+	 * shown again.
+	 */
+	private ConsoleClientRpc getClientRpc() {
+		if (rendered && !isDeliverable()) {
+			undelivered = true;
+			return DISCARDED_RPC;
+		}
+		flushOutput();
+		return getRpcProxy(ConsoleClientRpc.class);
+	}
+
+	/**
+	 * @return true if the console is attached and rendered on the client,
+	 *         e.g. not in a hidden tab
+	 */
+	private boolean isDeliverable() {
+		if (!isAttached()) {
+			return false;
+		}
+		// Visible up to the UI, and rendered by parents like TabSheet
+		Component component = this;
+		while (component != null) {
+			if (!component.isVisible()) {
+				return false;
+			}
+			final HasComponents parent = component.getParent();
+			if (parent instanceof SelectiveRenderer && !((SelectiveRenderer) parent).isRendered(component)) {
+				return false;
+			}
+			component = parent;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the output batch for the current response, marking this component
+	 * dirty so that the batch is sent in {@link #beforeClientResponse(boolean)}.
+	 * 
+	 * While the console cannot be shown the output is kept only in the
+	 * scrollback, and the batch holds just the current write.
+	 */
+	private OutputBatch write() {
+		if (!isDeliverable()) {
+			undelivered = true;
+			pendingOutput.clear();
+			return pendingOutput;
+		}
+		if (pendingOutput.isEmpty()) {
+			markAsDirty();
+		}
+		return pendingOutput;
+	}
+
+	/**
+	 * Write text to the scrollback and to the output batch.
+	 */
+	private void writeText(final boolean print, final String text, final String className) {
+		scrollback.append(text, className);
+		scrollback.trim(getScrollbackLines());
+		if (print) {
+			write().print(text, className);
+		} else {
+			write().append(text, className);
+		}
+	}
+
+	private void flushOutput() {
+		if (!pendingOutput.isEmpty()) {
+			getRpcProxy(ConsoleClientRpc.class).write(pendingOutput.getText(), pendingOutput.getRuns(), pendingOutput.getClassNames());
+			pendingOutput.clear();
+		}
+	}
+
+	@Override
+	public void beforeClientResponse(final boolean initial) {
+		super.beforeClientResponse(initial);
+		if (undelivered || initial && rendered) {
+			undelivered = false;
+			replay();
+		}
+		rendered = true;
+		flushOutput();
+		sendLines();
+		if (outputSequence > sentSequence) {
+			getRpcProxy(ConsoleClientRpc.class).sync(outputSequence);
+			sentSequence = outputSequence;
+		}
+	}
+
+	/**
+	 * Listener notified when the client has rendered output.
+	 */
+	interface RenderedListener extends Serializable {
+
+		void rendered();
+	}
+
+	/**
+	 * Notify the listener when the client has rendered the output written so
+	 * far. Output that cannot be delivered counts as rendered.
+	 */
+	void whenRendered(final RenderedListener listener) {
+		if (!isDeliverable()) {
+			listener.rendered();
+			return;
+		}
+		renderedListeners.put(++outputSequence, listener);
+		markAsDirty();
+	}
+
+	/**
+	 * Handle the acknowledgement of rendered output from the client.
+	 * 
+	 * @param sequence
+	 *            sequence number sent with {@link ConsoleClientRpc#sync(long)}
+	 */
+	private void acknowledge(final long sequence) {
+		final List<RenderedListener> listeners = new ArrayList<RenderedListener>();
+		final Iterator<Map.Entry<Long, RenderedListener>> i = renderedListeners.entrySet().iterator();
+		while (i.hasNext()) {
+			final Map.Entry<Long, RenderedListener> entry = i.next();
+			if (entry.getKey() > sequence) {
+				break;
+			}
+			listeners.add(entry.getValue());
+			i.remove();
+		}
+		for (final RenderedListener listener : listeners) {
+			listener.rendered();
+		}
+	}
+
+	/**
+	 * Create a subscriber writing to this console, requesting items as they
+	 * are rendered on the client.
+	 * 
+	 * @return a new subscriber
+	 */
+	public ConsoleSubscriber createSubscriber() {
+		return createSubscriber(ConsoleSubscriber.DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Create a subscriber writing to this console, requesting items as they
+	 * are rendered on the client.
+	 * 
+	 * @param window
+	 *            number of items not yet rendered
+	 * @return a new subscriber
+	 */
+	public ConsoleSubscriber createSubscriber(final int window) {
+		return new ConsoleSubscriber(getOutputSink(), window);
+	}
+
+	/**
+	 * Send the line numbers of the scrollback if changed, so that the client
+	 * can number its lines and page older ones.
+	 */
+	private void sendLines() {
+		final long firstLine = scrollback.getFirstLine();
+		final long lastLine = scrollback.getEndLine() - 1;
+		if (firstLine != sentFirstLine || lastLine != sentLastLine) {
+			getRpcProxy(ConsoleClientRpc.class).setLines(firstLine, lastLine);
+			sentFirstLine = firstLine;
+			sentLastLine = lastLine;
+		}
+	}
+
+	/**
+	 * Send a page of older lines requested by the client.
+	 * 
+	 * @param beforeLine
+	 *            absolute number of the first line the client has
+	 * @param count
+	 *            number of lines requested
+	 */
+	private void writePage(final long beforeLine, final int count) {
+		final long end = Math.min(beforeLine, scrollback.getEndLine() - 1);
+		final long from = Math.max(end - Math.min(count, MAX_PAGE_LINES), scrollback.getFirstLine());
+		final OutputBatch page = new OutputBatch();
+		if (from < end) {
+			scrollback.writeTo(page, from, end);
+		}
+		getClientRpc().prependLines(Math.min(from, beforeLine), page.getText(), page.getRuns(), page.getClassNames());
+	}
+
+	/**
+	 * Restore a new client-side widget from the scrollback, e.g. after a page
+	 * refresh with PreserveOnRefresh or when the console is attached again.
+	 */
+	private void replay() {
+		// Pending output is already in the scrollback
+		pendingOutput.clear();
+		// Replaced by the lines sent again
+		acknowledge(outputSequence);
+		resend();
+		if (!isCommandRunning()) {
+			getClientRpc().prompt();
+		}
+	}
+
+	/**
+	 * Clear the client buffer and send the lines it keeps again.
+	 */
+	private void resend() {
+		getClientRpc().clearBuffer();
+		final long end = scrollback.getEndLine();
+		scrollback.writeTo(write(), end - getClientLines(), end);
+		sentLastLine = -1;
+	}
+
+	@Override
+	public void attach() {
+		super.attach();
+		updateSessionDestroyListener();
+		if (outputSink != null) {
+			// Output written while detached
+			outputSink.schedule();
+		}
+	}
+
+	@Override
+	public void detach() {
+		// The client will not acknowledge
+		acknowledge(outputSequence);
+		// Not kept by the service while detached, registered again on attach
+		if (sessionDestroyRegistration != null) {
+			sessionDestroyRegistration.remove();
+			sessionDestroyRegistration = null;
+		}
+		if (getUI().isClosing() || getSession().getState() != VaadinSession.State.OPEN) {
+			// Not attached again, delete the disk tier now
+			scrollback.close();
+		}
+		super.detach();
+	}
+
+	/**
+	 * Get the sink for writing to this console from other threads without
+	 * holding the session lock. Get it with the session locked, e.g. before
+	 * starting the threads.
+	 * 
+	 * @return the sink of this console
+	 */
+	public ConsoleOutputSink getOutputSink() {
+		if (outputSink == null) {
+			outputSink = new ConsoleOutputSink(this);
+		}
+		return outputSink;
+	}
+
+	/**
+	 * Listen to the destroy of the session while the scrollback is on disk to
+	 * delete its files.
+	 */
+	private void updateSessionDestroyListener() {
+		final VaadinSession session = getSession();
+		if (scrollback.isDiskSpill() && sessionDestroyRegistration == null && session != null) {
+			sessionDestroyRegistration = session.getService().addSessionDestroyListener(new SessionDestroyListener() {
+
+				private static final long serialVersionUID = -6718958412418218716L;
+
+				@Override
+				public void sessionDestroy(final SessionDestroyEvent event) {
+					if (event.getSession() == session) {
+						scrollback.close();
+						sessionDestroyRegistration.remove();
+						sessionDestroyRegistration = null;
+					}
+				}
+			});
+		} else if (!scrollback.isDiskSpill() && sessionDestroyRegistration != null) {
+			sessionDestroyRegistration.remove();
+			sessionDestroyRegistration = null;
+		}
+	}
+
+	/**
+	 * @return number of lines kept by the client: the buffer and the visible
+	 *         rows
+	 */
+	private int getClientLines() {
+		return getState(false).maxBufferSize + (config.rows > 0 ? config.rows : MAX_ROWS);
+	}
+
+	/**
+	 * @return number of lines kept in the scrollback
+	 */
+	private int getScrollbackLines() {
+		return Math.max(config.maxScrollback, getClientLines());
+	}
+
 	// We must override getState() to cast the state to ConsoleState
 	@Override
 	public ConsoleState getState() {
 		return (ConsoleState) super.getState();
 	}
 
+	@Override
+	protected ConsoleState getState(final boolean markAsDirty) {
+		return (ConsoleState) super.getState(markAsDirty);
+	}
+
 	private static final long serialVersionUID = 590258219352859644L;
+
+	/** Client RPC that ignores all calls. */
+	private static final ConsoleClientRpc DISCARDED_RPC = (ConsoleClientRpc) Proxy.newProxyInstance(
+			ConsoleClientRpc.class.getClassLoader(), new Class<?>[] { ConsoleClientRpc.class }, new InvocationHandler() {
+
+				@Override
+				public Object invoke(final Object proxy, final Method method, final Object[] args) {
+					// All methods are void
+					return null;
+				}
+			});
 	private Handler handler;
 	private ANSICodeConverter ansiToCSSconverter;
+	private ANSITokenizer ansiTokenizer;
 	private boolean isConvertANSIToCSS = false;
 	private final HashMap<String, Command> commands = new HashMap<String, Command>();
 	private final Config config = new Config();
+	private final OutputBatch pendingOutput = new OutputBatch();
+	private final Scrollback scrollback = new Scrollback();
+	private boolean rendered;
+
+	/* Output or calls were discarded while the console could not be shown */
+	private boolean undelivered;
+	private long sentFirstLine = -1;
+	private long sentLastLine = -1;
+	private transient Registration sessionDestroyRegistration;
+	private ConsoleOutputSink outputSink;
+
+	/* Listeners of output not yet rendered by the client, by sequence number */
+	private final LinkedHashMap<Long, RenderedListener> renderedListeners = new LinkedHashMap<Long, RenderedListener>();
+	private long outputSequence;
+	private long sentSequence;
+	private transient ExecutorService commandExecutor;
+	private transient Future<?> runningCommand;
+	private int commandId;
+	private boolean promptPending;
+	private String promptInput;
+	private final JobControl jobControl = new JobControl(this);
+	private ConsoleJob foregroundJob;
+	private File redirectDirectory;
 
 	private static final String DEFAULT_PS = "}> ";
-	private static final String DEFAULT_GREETING = "Console ready.";
 	private static final int DEFAULT_BUFFER = 0;
 	private static final int DEFAULT_COLS = -1;
 	private static final int DEFAULT_ROWS = -1;
-	private static final boolean DEFAULT_WRAP = true;
-	private static final boolean DEFAULT_PRINT_PROMPT_ON_INPUT = true;
-	private static final boolean DEFAULT_SMART_SCROLL_TO_END = false;
 	private static final int MAX_COLS = 500;
 	private static final int MAX_ROWS = 200;
+	private static final int MAX_PAGE_LINES = 1000;
+	private static final int MAX_WAITING_JOBS = 100;
+
+	/** Console of the command run by the current executor thread. */
+	private static final ThreadLocal<Console> COMMAND_CONSOLE = new ThreadLocal<Console>();
 
 	public boolean isWrap() {
-		return config.wrap;
+		return getState(false).wrap;
 	}
 
 	public void setWrap(final boolean wrap) {
-		config.wrap = wrap;
-		getRpcProxy(ConsoleClientRpc.class).setWrap(wrap);
+		if (runLocked(Call.WRAP, wrap)) {
+			return;
+		}
+		getState().wrap = wrap;
 	}
 
 	/**
@@ -119,7 +477,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *         false otherwise
 	 */
 	public boolean isPrintPromptOnInput() {
-		return config.isPrintPromptOnInput;
+		return getState(false).printPromptOnInput;
 	}
 
 	/**
@@ -128,8 +486,10 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *            console, nothing happens otherwise
 	 */
 	public void setPrintPromptOnInput(final boolean isPrintPromptOnInput) {
-		config.isPrintPromptOnInput = isPrintPromptOnInput;
-		getRpcProxy(ConsoleClientRpc.class).setPrintPromptOnInput(isPrintPromptOnInput);
+		if (runLocked(Call.PRINT_PROMPT_ON_INPUT, isPrintPromptOnInput)) {
+			return;
+		}
+		getState().printPromptOnInput = isPrintPromptOnInput;
 	}
 
 	/**
@@ -137,7 +497,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *         was "end"
 	 */
 	public boolean isScrollLock() {
-		return config.isScrollLock;
+		return getState(false).scrollLock;
 	}
 
 	/**
@@ -146,8 +506,38 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 *            state was "end"
 	 */
 	public void setScrollLock(final boolean isScrollLock) {
-		config.isScrollLock = isScrollLock;
-		getRpcProxy(ConsoleClientRpc.class).setScrollLock(isScrollLock);
+		if (runLocked(Call.SCROLL_LOCK, isScrollLock)) {
+			return;
+		}
+		getState().scrollLock = isScrollLock;
+	}
+
+	/**
+	 * @return true, if the client renders only the visible rows of the buffer
+	 */
+	public boolean isVirtualScroll() {
+		return getState(false).virtualScroll;
+	}
+
+	/**
+	 * @param virtualScroll
+	 *            if true - the client keeps the buffer lines as data and
+	 *            renders only the visible rows, for consoles with a large
+	 *            buffer that stay open for a long time
+	 */
+	public void setVirtualScroll(final boolean virtualScroll) {
+		if (runLocked(Call.VIRTUAL_SCROLL, virtualScroll)) {
+			return;
+		}
+		if (getState(false).virtualScroll == virtualScroll) {
+			return;
+		}
+		getState().virtualScroll = virtualScroll;
+		if (rendered) {
+			// Switching clears the client buffer
+			pendingOutput.clear();
+			resend();
+		}
 	}
 
 	/**
@@ -169,14 +559,9 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 		private static final long serialVersionUID = -812601232248504108L;
 
-		int maxBufferSize = DEFAULT_BUFFER;
+		int maxScrollback = DEFAULT_BUFFER;
 		int cols = DEFAULT_COLS;
 		int rows = DEFAULT_ROWS;
-		boolean wrap = DEFAULT_WRAP;
-		boolean isPrintPromptOnInput = DEFAULT_PRINT_PROMPT_ON_INPUT;
-		boolean isScrollLock = DEFAULT_SMART_SCROLL_TO_END;
-		String ps = DEFAULT_PS;
-		String greeting = DEFAULT_GREETING;
 
 	}
 
@@ -257,6 +642,63 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		public String getUsage(Console console, String[] argv);
 	}
 
+	/**
+	 * Receiver of the output of a command in a pipeline, line by line.
+	 */
+	public interface LineConsumer {
+
+		/**
+		 * @param line
+		 *            a line without the line break
+		 * @throws Exception
+		 */
+		public void accept(String line) throws Exception;
+	}
+
+	/**
+	 * A {@link StreamingCommand} running in a pipeline, receiving the output
+	 * of the previous command.
+	 */
+	public interface Stage extends LineConsumer {
+
+		/**
+		 * Called after the last input line, e.g. to write output collected
+		 * from the input.
+		 * 
+		 * @throws Exception
+		 */
+		public void close() throws Exception;
+	}
+
+	/**
+	 * Command processing its input line by line as it is written, e.g. a
+	 * filter like <code>grep</code> at the end of
+	 * <code>list | grep foo</code>, without collecting the whole output of the
+	 * previous command first.
+	 * 
+	 * The console runs the command with {@link #open(Console, String[],
+	 * LineConsumer)}, also when it is not in a pipeline.
+	 * {@link #execute(Console, String[])} is only called by code that does
+	 * not know about streaming.
+	 * 
+	 * @see CommandLine
+	 */
+	public interface StreamingCommand extends Command {
+
+		/**
+		 * Start the command. Output can be written already here, e.g. by a
+		 * command that ignores its input.
+		 * 
+		 * @param console
+		 * @param argv
+		 * @param output
+		 *            receiver of the output lines
+		 * @return the stage receiving the input lines
+		 * @throws Exception
+		 */
+		public Stage open(Console console, String[] argv, LineConsumer output) throws Exception;
+	}
+
 	/**
 	 * Interface for providing Commands to the console. One can register a
 	 * command providers to console instead of individual commands to provide a
@@ -284,6 +726,90 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 	}
 
+	/**
+	 * Listener for changes of the number of columns or rows, e.g. for
+	 * commands that format their output to the console size.
+	 * 
+	 */
+	public interface SizeChangeListener extends Serializable {
+
+		public static final Method SIZE_CHANGE_METHOD = ReflectTools.findMethod(SizeChangeListener.class, "sizeChanged",
+				SizeChangeEvent.class);
+
+		/**
+		 * Called when the console was resized to a different number of
+		 * columns or rows.
+		 * 
+		 * @param event
+		 */
+		public void sizeChanged(SizeChangeEvent event);
+	}
+
+	/**
+	 * Event fired when the number of columns or rows has changed.
+	 * 
+	 */
+	public static class SizeChangeEvent extends Component.Event {
+
+		private static final long serialVersionUID = -4619376023472351652L;
+
+		private final int cols;
+		private final int rows;
+
+		public SizeChangeEvent(final Console source, final int cols, final int rows) {
+			super(source);
+			this.cols = cols;
+			this.rows = rows;
+		}
+
+		public Console getConsole() {
+			return (Console) getSource();
+		}
+
+		public int getCols() {
+			return cols;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+	}
+
+	public Registration addSizeChangeListener(final SizeChangeListener listener) {
+		return addListener(SizeChangeEvent.class, listener, SizeChangeListener.SIZE_CHANGE_METHOD);
+	}
+
+	/**
+	 * Handle a resize of the client. Only the values that differ from the
+	 * current ones are applied, so an unchanged size is not sent back to the
+	 * client.
+	 * 
+	 * @param cols
+	 * @param rows
+	 * @param width
+	 *            width calculated by the client or null
+	 * @param height
+	 *            height calculated by the client or null
+	 */
+	protected void handleResize(final int cols, final int rows, final String width, final String height) {
+		if (width != null) {
+			setWidth(width);
+		}
+		if (height != null) {
+			setHeight(height);
+		}
+		updateSize(cols, rows);
+	}
+
+	private void updateSize(final int cols, final int rows) {
+		if (cols == config.cols && rows == config.rows) {
+			return;
+		}
+		config.cols = cols;
+		config.rows = rows;
+		fireEvent(new SizeChangeEvent(this, cols, rows));
+	}
+
 	public void addCommandProvider(final CommandProvider commandProvider) {
 		if (commandProviders == null) {
 			commandProviders = new ArrayList<CommandProvider>();
@@ -391,21 +917,64 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void bell() {
-		getRpcProxy(ConsoleClientRpc.class).bell();
+		if (runLocked(Call.BELL, null)) {
+			return;
+		}
+		getClientRpc().bell();
 	}
 
 	protected void handleInput(final String input) {
+		if (isCommandRunning()) {
+			// Input is disabled on the client until the command completes
+			bell();
+			return;
+		}
+
+		// Same as the client does with the input
+		if (scrollback.isLastLineOpen()) {
+			scrollback.newLine();
+		}
+		if (getState(false).printPromptOnInput) {
+			scrollback.append(getState(false).ps + input, null);
+			scrollback.newLine();
+		}
 
 		// Ask registered handler
 		handler.inputReceived(this, input);
 
 	}
 
+	/**
+	 * Parse the input with the {@link CommandLine} grammar and run it.
+	 * 
+	 * A trailing <code>&amp;</code> runs the command in the foreground with a
+	 * warning unless job control is enabled.
+	 */
 	protected void parseAndExecuteCommand(final String input) {
-		final String[] argv = parseInput(input);
-		if (argv != null && argv.length > 0) {
-			final Command c = getCommand(argv[0]);
-			if (c != null) {
+		final CommandLine line;
+		try {
+			line = CommandLine.parse(input);
+		} catch (final IllegalArgumentException e) {
+			println("ERROR: " + e.getMessage());
+			return;
+		}
+		if (!line.isEmpty()) {
+			final boolean background = line.isBackground() && jobControl.isEnabled();
+			if (line.isBackground() && !background) {
+				println("WARNING: job control is not enabled, running in the foreground");
+			}
+			final String[] argv = line.getArgv();
+			Command c = line.isSimple() ? getCommand(argv[0]) : null;
+			if (!line.isSimple() || c instanceof StreamingCommand) {
+				c = createCommand(line);
+			}
+			if (c == null && jobControl.isEnabled() && JobControl.BUILTINS.contains(argv[0])) {
+				jobControl.execute(argv);
+			} else if (c != null && background) {
+				jobControl.start(c, argv, line.getText());
+			} else if (c != null && commandExecutor != null) {
+				startCommand(c, argv);
+			} else if (c != null) {
 				final String result = executeCommand(c, argv);
 				if (result != null) {
 					print(result);
@@ -416,6 +985,27 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		}
 	}
 
+	/**
+	 * @return a command running the pipelines of the command line
+	 */
+	private Command createCommand(final CommandLine line) {
+		return new Command() {
+
+			private static final long serialVersionUID = -4471585906187744290L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) {
+				line.execute(console);
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		};
+	}
+
 	protected String executeCommand(final Command cmd, final String[] argv) {
 		try {
 			final Object r = cmd.execute(this, argv);
@@ -426,6 +1016,424 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		return null;
 	}
 
+	/**
+	 * Get the executor running the commands.
+	 * 
+	 * @return the executor, or null if commands run in the request thread
+	 */
+	public ExecutorService getCommandExecutor() {
+		return commandExecutor;
+	}
+
+	/**
+	 * Run commands on an executor instead of the request thread, without the
+	 * session locked.
+	 * 
+	 * While a command runs the prompt is hidden and input is ignored. Output
+	 * printed by the command goes through the {@link ConsoleOutputSink}, so
+	 * the UI needs server push or polling for it to show up. The result is
+	 * printed and the prompt shown when the command completes. Ctrl-C on the
+	 * client cancels the command, interrupting its thread.
+	 * 
+	 * The executor is not serialized with the console, and is not shut down
+	 * by it.
+	 * 
+	 * @param commandExecutor
+	 *            the executor, or null to run commands in the request thread
+	 * @see #newCommandExecutor()
+	 */
+	public void setCommandExecutor(final ExecutorService commandExecutor) {
+		this.commandExecutor = commandExecutor;
+	}
+
+	/**
+	 * Create an executor for {@link #setCommandExecutor(ExecutorService)}
+	 * with a thread per command, using virtual threads if the JVM has them.
+	 * 
+	 * @return a new executor
+	 */
+	public static ExecutorService newCommandExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (final Exception e) {
+			// No virtual threads before Java 21
+		}
+		return Executors.newCachedThreadPool(newDaemonThreadFactory("console-command"));
+	}
+
+	private static ThreadFactory newDaemonThreadFactory(final String name) {
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Get the executor running the background jobs.
+	 * 
+	 * @return the executor, or null if job control is disabled
+	 */
+	public ExecutorService getJobExecutor() {
+		return jobControl.getExecutor();
+	}
+
+	/**
+	 * Enable job control: a command line ending with <code>&amp;</code> runs
+	 * the command as a background job on the executor, without the session
+	 * locked like with {@link #setCommandExecutor(ExecutorService)}. The
+	 * builtins <code>jobs</code>, <code>fg [n]</code> and
+	 * <code>kill [n]</code> list the running jobs, wait for a job in the
+	 * foreground, cancellable with Ctrl-C, and cancel a job. Commands added
+	 * with the same names are run instead of the builtins.
+	 * 
+	 * The output of background jobs is written by line, tagged with the job
+	 * number.
+	 * 
+	 * The executor is not serialized with the console, and is not shut down
+	 * by it.
+	 * 
+	 * @param jobExecutor
+	 *            the executor, or null to disable job control
+	 * @see #newJobExecutor(int)
+	 */
+	public void setJobExecutor(final ExecutorService jobExecutor) {
+		jobControl.setExecutor(jobExecutor);
+	}
+
+	/**
+	 * Create an executor for {@link #setJobExecutor(ExecutorService)} running
+	 * a limited number of jobs at a time. Further jobs wait for a free thread,
+	 * and are rejected when too many are waiting.
+	 * 
+	 * @param maxJobs
+	 *            number of jobs running at a time
+	 * @return a new executor
+	 */
+	public static ExecutorService newJobExecutor(final int maxJobs) {
+		final int threads = Math.max(maxJobs, 1);
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(MAX_WAITING_JOBS), newDaemonThreadFactory("console-job"));
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	public File getRedirectDirectory() {
+		return redirectDirectory;
+	}
+
+	/**
+	 * Allow redirecting the output of a command line to a file with
+	 * <code>&gt; file</code>. Files are created in the directory, and names
+	 * leading out of it are refused.
+	 * 
+	 * @param redirectDirectory
+	 *            the directory, or null to disable redirection
+	 */
+	public void setRedirectDirectory(final File redirectDirectory) {
+		this.redirectDirectory = redirectDirectory;
+	}
+
+	/**
+	 * Open a file in the redirect directory for the output of a command line.
+	 * 
+	 * @param name
+	 *            name of the file, relative to the redirect directory
+	 * @return writer of the file in UTF-8
+	 * @throws IOException
+	 *             if redirection is disabled or the file cannot be written
+	 */
+	Writer openRedirect(final String name) throws IOException {
+		if (redirectDirectory == null) {
+			throw new IOException("redirection is disabled");
+		}
+		final File dir = redirectDirectory.getCanonicalFile();
+		final File file = new File(dir, name).getCanonicalFile();
+		if (!file.getPath().startsWith(dir.getPath() + File.separator)) {
+			throw new IOException("outside of the redirect directory");
+		}
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+	}
+
+	/**
+	 * @return the background jobs that have not ended, by number
+	 */
+	public List<ConsoleJob> getJobs() {
+		return jobControl.getJobs();
+	}
+
+	/**
+	 * Wait for a job in the foreground, as for a command run on the command
+	 * executor.
+	 */
+	void startForegroundJob(final ConsoleJob job) {
+		// The result of a running command is ignored
+		commandId++;
+		runningCommand = job.getFuture();
+		foregroundJob = job;
+		getState().busy = true;
+	}
+
+	boolean isForegroundJob(final ConsoleJob job) {
+		return job == foregroundJob;
+	}
+
+	void endForegroundJob() {
+		foregroundJob = null;
+		endCommand();
+		showPendingPrompt();
+	}
+
+	/**
+	 * @return true while a command runs on the command executor
+	 */
+	public boolean isCommandRunning() {
+		return runningCommand != null;
+	}
+
+	/**
+	 * Cancel the running command, interrupting its thread, and show the
+	 * prompt. Output the command prints after this is still written.
+	 */
+	public void cancelCommand() {
+		if (runningCommand == null) {
+			return;
+		}
+		runningCommand.cancel(true);
+		if (foregroundJob != null) {
+			jobControl.cancelled(foregroundJob);
+			foregroundJob = null;
+		}
+		// The result of the command is ignored
+		commandId++;
+		endCommand();
+		println("^C");
+		showPendingPrompt();
+	}
+
+	private void startCommand(final Command cmd, final String[] argv) {
+		final ConsoleOutputSink sink = getOutputSink();
+		final int id = ++commandId;
+		try {
+			runningCommand = commandExecutor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					// Exceptions are reported by the handler, like in the request
+					// thread
+					final String result;
+					COMMAND_CONSOLE.set(Console.this);
+					try {
+						result = executeCommand(cmd, argv);
+					} finally {
+						COMMAND_CONSOLE.remove();
+					}
+					// After the output of the command
+					sink.execute(new ConsoleOutputSink.Action() {
+
+						private static final long serialVersionUID = -1150532467322850745L;
+
+						@Override
+						public void run() {
+							finishCommand(id, result);
+						}
+					});
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			handler.handleException(this, e, cmd, argv);
+			return;
+		}
+		getState().busy = true;
+	}
+
+	/**
+	 * Print the result of a command run on the executor. Called with the
+	 * session locked.
+	 */
+	private void finishCommand(final int id, final String result) {
+		if (id != commandId || runningCommand == null) {
+			// Cancelled
+			return;
+		}
+		endCommand();
+		if (result != null) {
+			print(result);
+		}
+		showPendingPrompt();
+	}
+
+	private void endCommand() {
+		runningCommand = null;
+		getState().busy = false;
+	}
+
+	private void showPendingPrompt() {
+		if (promptPending) {
+			promptPending = false;
+			prompt(promptInput);
+		}
+	}
+
+	/**
+	 * Write output of a command in a pipeline to the next stage, output of a
+	 * background job to the job, and output written without the session
+	 * locked to the output sink.
+	 * 
+	 * @return true if written
+	 */
+	private boolean writeOffLock(final String text, final String className, final boolean newLine) {
+		final CommandLine.Capture capture = CommandLine.getCapture();
+		if (capture != null) {
+			// Output of a command in a pipeline
+			capture.print(text, newLine);
+			return true;
+		}
+		final ConsoleJob job = ConsoleJob.current();
+		if (job != null) {
+			job.print(text, className, newLine);
+			return true;
+		}
+		if (!isOffLock()) {
+			return false;
+		}
+		if (newLine) {
+			getOutputSink().println(text, className);
+		} else {
+			getOutputSink().print(text, className);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if called from another thread than the one holding the
+	 *         session lock, e.g. by a command run on the command executor,
+	 *         also while the console is detached
+	 */
+	private boolean isOffLock() {
+		VaadinSession session = getSession();
+		if (session == null) {
+			session = VaadinSession.getCurrent();
+		}
+		if (session != null) {
+			return !session.hasLock();
+		}
+		// No session to lock, e.g. before the console is attached
+		return COMMAND_CONSOLE.get() == this || ConsoleJob.current() != null;
+	}
+
+	/**
+	 * Call a method again with the session locked, in order with the output,
+	 * if called without the lock.
+	 * 
+	 * @return true if the call is deferred
+	 */
+	private boolean runLocked(final Call call, final Object value) {
+		if (!isOffLock()) {
+			return false;
+		}
+		getOutputSink().execute(new LockedCall(call, value));
+		return true;
+	}
+
+	/**
+	 * Methods called with {@link Console#runLocked(Call, Object)}.
+	 */
+	private enum Call {
+		BELL, PROMPT, NEW_LINE_IF_NEEDED, RESET, FORM_FEED, CARRIAGE_RETURN, LINE_FEED, CLEAR_COMMAND_HISTORY,
+		CLEAR_BUFFER, SCROLL_TO_END, FOCUS_INPUT, WRAP, PRINT_PROMPT_ON_INPUT, SCROLL_LOCK, VIRTUAL_SCROLL,
+		DISK_SCROLLBACK, GREETING, PS, MAX_BUFFER_SIZE, MAX_SCROLLBACK, ROWS, COLS
+	}
+
+	private class LockedCall implements ConsoleOutputSink.Action {
+
+		private static final long serialVersionUID = 7419355030262842913L;
+
+		private final Call call;
+		private final Object value;
+
+		LockedCall(final Call call, final Object value) {
+			this.call = call;
+			this.value = value;
+		}
+
+		@Override
+		public void run() {
+			switch (call) {
+			case BELL:
+				bell();
+				break;
+			case PROMPT:
+				prompt((String) value);
+				break;
+			case NEW_LINE_IF_NEEDED:
+				newLineIfNotEndsWithNewLine();
+				break;
+			case RESET:
+				reset();
+				break;
+			case FORM_FEED:
+				formFeed();
+				break;
+			case CARRIAGE_RETURN:
+				carriageReturn();
+				break;
+			case LINE_FEED:
+				lineFeed();
+				break;
+			case CLEAR_COMMAND_HISTORY:
+				clearCommandHistory();
+				break;
+			case CLEAR_BUFFER:
+				clearBuffer();
+				break;
+			case SCROLL_TO_END:
+				scrollToEnd();
+				break;
+			case FOCUS_INPUT:
+				focusInput();
+				break;
+			case WRAP:
+				setWrap((Boolean) value);
+				break;
+			case PRINT_PROMPT_ON_INPUT:
+				setPrintPromptOnInput((Boolean) value);
+				break;
+			case SCROLL_LOCK:
+				setScrollLock((Boolean) value);
+				break;
+			case VIRTUAL_SCROLL:
+				setVirtualScroll((Boolean) value);
+				break;
+			case DISK_SCROLLBACK:
+				setDiskScrollback((Boolean) value);
+				break;
+			case GREETING:
+				setGreeting((String) value);
+				break;
+			case PS:
+				setPs((String) value);
+				break;
+			case MAX_BUFFER_SIZE:
+				setMaxBufferSize((Integer) value);
+				break;
+			case MAX_SCROLLBACK:
+				setMaxScrollback((Integer) value);
+				break;
+			case ROWS:
+				setRows((Integer) value);
+				break;
+			case COLS:
+				setCols((Integer) value);
+				break;
+			}
+		}
+	}
+
 	protected String parseCommandPrefix(final String input) {
 		if (input == null) {
 			return null;
@@ -439,38 +1447,16 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 		return "";
 	}
 
+	/**
+	 * Split the input into words as {@link CommandLine} does, with operators
+	 * as words of their own.
+	 */
 	protected static String[] parseInput(final String input) {
-		if (input != null && !"".equals(input.trim())) {
-			final String[] temp = input.split(" ");
-			if (temp != null && temp.length > 0) {
-				final List<String> parsed = new ArrayList<String>(temp.length);
-				String current = null;
-				for (final String element : temp) {
-					final int quotCount = count(element, '\"');
-					if (quotCount > 0 && quotCount % 2 != 0) {
-						// uneven number of quotes star or end combining params
-						if (current != null) {
-							parsed.add(current + " " + element.replaceAll("\"", "")); // end
-							current = null;
-						} else {
-							current = element.replaceAll("\"", ""); // start
-						}
-					} else if (current != null) {
-						current += " " + element.replaceAll("\"", "");
-					} else {
-						parsed.add(element.replaceAll("\"", ""));
-					}
-				}
-
-				// TODO: actually this is not quite right: We have an open quote
-				// somewhere. Exception maybe?
-				if (current != null) {
-					parsed.add(current.replaceAll("\"", ""));
-				}
-				return parsed.toArray(new String[] {});
-			}
+		final List<String> parsed = new ArrayList<String>();
+		for (final CommandLine.Token token : CommandLine.tokenize(input)) {
+			parsed.add(token.text);
 		}
-		return new String[] {};
+		return parsed.toArray(new String[parsed.size()]);
 	}
 
 	protected static int count(final String sourceString, final char lookFor) {
@@ -488,11 +1474,14 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void print(final String output) {
+		if (writeOffLock(output, null, false)) {
+			return;
+		}
 		if (isConvertANSIToCSS) {
-			getRpcProxy(ConsoleClientRpc.class).print("");
+			writeText(true, "", null);
 			appendWithProcessingANSICodes(output);
 		} else
-			getRpcProxy(ConsoleClientRpc.class).print(output);
+			writeText(true, output, null);
 	}
 
 	/**
@@ -507,19 +1496,47 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 			print(output);
 			return;
 		}
-		getRpcProxy(ConsoleClientRpc.class).printWithClass(output, className);
+		if (writeOffLock(output, className, false)) {
+			return;
+		}
+		writeText(true, output, className);
 	}
 
 	public String getGreeting() {
-		return config.greeting;
+		return getState(false).greeting;
 	}
 
 	public String getPs() {
-		return config.ps;
+		return getState(false).ps;
 	}
 
 	public int getMaxBufferSize() {
-		return config.maxBufferSize;
+		return getState(false).maxBufferSize;
+	}
+
+	/**
+	 * @return true if older lines of the server-side scrollback are kept in a
+	 *         temporary file
+	 */
+	public boolean isDiskScrollback() {
+		return scrollback.isDiskSpill();
+	}
+
+	/**
+	 * Keep only the newest lines of the server-side scrollback on heap and
+	 * move older lines to a memory-mapped temporary file, for consoles with a
+	 * large {@link #setMaxBufferSize(int)}. The file is deleted when the
+	 * session is destroyed or the UI closed. The lines on disk are lost when
+	 * the session is serialized.
+	 * 
+	 * @param diskScrollback
+	 */
+	public void setDiskScrollback(final boolean diskScrollback) {
+		if (runLocked(Call.DISK_SCROLLBACK, diskScrollback)) {
+			return;
+		}
+		scrollback.setDiskSpill(diskScrollback);
+		updateSessionDestroyListener();
 	}
 
 	public int getRows() {
@@ -527,29 +1544,53 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void setGreeting(final String greeting) {
-		config.greeting = greeting;
-		getRpcProxy(ConsoleClientRpc.class).setGreeting(greeting);
+		if (runLocked(Call.GREETING, greeting)) {
+			return;
+		}
+		getState().greeting = greeting;
 	}
 
 	public void setPs(final String ps) {
-		config.ps = ps == null ? DEFAULT_PS : ps;
-		getRpcProxy(ConsoleClientRpc.class).setPs(config.ps);
+		if (runLocked(Call.PS, ps)) {
+			return;
+		}
+		getState().ps = ps == null ? DEFAULT_PS : ps;
 	}
 
 	public void setMaxBufferSize(final int lines) {
-		config.maxBufferSize = lines > 0 ? lines : 0;
-		getRpcProxy(ConsoleClientRpc.class).setMaxBufferSize(config.maxBufferSize);
+		if (runLocked(Call.MAX_BUFFER_SIZE, lines)) {
+			return;
+		}
+		getState().maxBufferSize = lines > 0 ? lines : 0;
 	}
 
-	public void setRows(final int rows) {
-		config.rows = rows;
-		if (config.rows < 1) {
-			config.rows = 1;
+	public int getMaxScrollback() {
+		return config.maxScrollback;
+	}
+
+	/**
+	 * Set the number of lines kept on the server. The client keeps only
+	 * {@link #getMaxBufferSize()} lines and loads older lines when scrolled to
+	 * the top. Use with {@link #setDiskScrollback(boolean)} for a long
+	 * history.
+	 * 
+	 * @param lines
+	 *            maximum number of lines, at least the buffer and the rows
+	 */
+	public void setMaxScrollback(final int lines) {
+		if (runLocked(Call.MAX_SCROLLBACK, lines)) {
+			return;
 		}
-		if (config.rows > MAX_ROWS) {
-			config.rows = MAX_ROWS;
+		config.maxScrollback = lines > 0 ? lines : 0;
+		scrollback.trim(getScrollbackLines());
+	}
+
+	public void setRows(final int rows) {
+		if (runLocked(Call.ROWS, rows)) {
+			return;
 		}
-		getRpcProxy(ConsoleClientRpc.class).setRows(rows);
+		updateSize(config.cols, Math.min(Math.max(rows, 1), MAX_ROWS));
+		getClientRpc().setRows(config.rows);
 	}
 
 	public int getCols() {
@@ -557,30 +1598,50 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void setCols(final int cols) {
-		config.cols = cols;
-		if (config.cols < 1) {
-			config.cols = 1;
-		}
-		if (config.cols > MAX_COLS) {
-			config.cols = MAX_COLS;
+		if (runLocked(Call.COLS, cols)) {
+			return;
 		}
-		getRpcProxy(ConsoleClientRpc.class).setCols(config.cols);
+		updateSize(Math.min(Math.max(cols, 1), MAX_COLS), config.rows);
+		getClientRpc().setCols(config.cols);
 	}
 
+	/**
+	 * Show the prompt. While a command runs on the command executor the
+	 * prompt is shown when it completes.
+	 */
 	public void prompt() {
-		getRpcProxy(ConsoleClientRpc.class).prompt();
+		prompt(null);
 	}
 
+	/**
+	 * Show the prompt with initial input. While a command runs on the command
+	 * executor the prompt is shown when it completes.
+	 */
 	public void prompt(final String initialInput) {
-		getRpcProxy(ConsoleClientRpc.class).prompt(initialInput);
+		if (runLocked(Call.PROMPT, initialInput)) {
+			return;
+		}
+		if (isCommandRunning()) {
+			promptPending = true;
+			promptInput = initialInput;
+			return;
+		}
+		if (initialInput == null) {
+			getClientRpc().prompt();
+		} else {
+			getClientRpc().prompt(initialInput);
+		}
 	}
 
 	public void println(final String string) {
+		if (writeOffLock(string, null, true)) {
+			return;
+		}
 		if (isConvertANSIToCSS) {
-			getRpcProxy(ConsoleClientRpc.class).print("");
+			writeText(true, "", null);
 			appendWithProcessingANSICodes(string + "\n");
 		} else
-			getRpcProxy(ConsoleClientRpc.class).println(string);
+			writeText(true, string + "\n", null);
 	}
 
 	/**
@@ -595,7 +1656,10 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 			println(string);
 			return;
 		}
-		getRpcProxy(ConsoleClientRpc.class).printlnWithClass(string, className);
+		if (writeOffLock(string, className, true)) {
+			return;
+		}
+		writeText(true, string + "\n", className);
 	}
 
 	/**
@@ -604,37 +1668,24 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 * @return this Console object
 	 */
 	public Console append(final String string) {
+		if (writeOffLock(string, null, false)) {
+			return this;
+		}
 		if (isConvertANSIToCSS)
 			appendWithProcessingANSICodes(string);
 		else
-			getRpcProxy(ConsoleClientRpc.class).append(string);
+			writeText(false, string, null);
 		return this;
 	}
 
-	private void appendWithProcessingANSICodes(String sOutput) {
-		String splitted[] = sOutput.split(ANSICodeConverter.ANSI_PATTERN);
-		String notPrintedYet = new String(sOutput);
-		for (int i = 0; i < splitted.length; i++) {
-			String nextStr = splitted[i];
-			if (i == 0 && nextStr.length() == 0)
-				continue;
-			String cssClasses = "";
-			Pattern firstAnsi = Pattern.compile("^(" + ANSICodeConverter.ANSI_PATTERN + ")+\\Q" + nextStr + "\\E.*", Pattern.DOTALL);
-			if (firstAnsi.matcher(notPrintedYet).matches()) {
-				while (firstAnsi.matcher(notPrintedYet).matches()) {
-					String ansi = notPrintedYet.replaceAll("\\Q" + notPrintedYet.replaceAll("^(" + ANSICodeConverter.ANSI_PATTERN + "){1}", "") + "\\E", "");
-					cssClasses += ansiToCSSconverter.convertANSIToCSS(ansi) + " ";
-					notPrintedYet = notPrintedYet.replaceAll("^(" + ANSICodeConverter.ANSI_PATTERN + "){1}", "");
-				}
-				notPrintedYet = notPrintedYet.replaceAll("^\\Q" + nextStr + "\\E", "");
-			} else
-				notPrintedYet = notPrintedYet.replaceFirst("\\Q" + nextStr + "\\E", "");
-			cssClasses = cssClasses.trim();
-			if (cssClasses.length() > 0)
-				getRpcProxy(ConsoleClientRpc.class).appendWithClass(nextStr, cssClasses);
-			else
-				getRpcProxy(ConsoleClientRpc.class).append(nextStr);
-		}
+	private void appendWithProcessingANSICodes(final String sOutput) {
+		ansiTokenizer.tokenize(sOutput, new ANSITokenizer.Handler() {
+
+			@Override
+			public void text(final String text, final String cssClasses) {
+				writeText(false, text, cssClasses);
+			}
+		});
 	}
 
 	/**
@@ -649,23 +1700,51 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	public Console append(final String string, final String className) {
 		if (className == null)
 			return append(string);
-		getRpcProxy(ConsoleClientRpc.class).appendWithClass(string, className);
+		if (writeOffLock(string, className, false)) {
+			return this;
+		}
+		writeText(false, string, className);
 		return this;
 	}
 
 	public void newLine() {
-		getRpcProxy(ConsoleClientRpc.class).newLine();
+		if (writeOffLock("", null, true)) {
+			return;
+		}
+		writeText(false, "\n", null);
 	}
 
 	/**
 	 * Print new line only if new line not exists at the end of console
 	 */
 	public void newLineIfNotEndsWithNewLine() {
-		getRpcProxy(ConsoleClientRpc.class).newLineIfNotEndsWithNewLine();
+		final CommandLine.Capture capture = CommandLine.getCapture();
+		if (capture != null) {
+			// Ends the partial line, if any
+			capture.flush();
+			return;
+		}
+		final ConsoleJob job = ConsoleJob.current();
+		if (job != null && job.endLine()) {
+			return;
+		}
+		if (runLocked(Call.NEW_LINE_IF_NEEDED, null)) {
+			return;
+		}
+		if (scrollback.isLastLineOpen()) {
+			scrollback.newLine();
+		}
+		write().newLineIfNotEndsWithNewLine();
 	}
 
 	public void reset() {
-		getRpcProxy(ConsoleClientRpc.class).reset();
+		if (runLocked(Call.RESET, null)) {
+			return;
+		}
+		ansiTokenizer.reset();
+		scrollback.clear();
+		scrollback.append(getState(false).greeting, null);
+		getClientRpc().reset();
 	}
 
 	public void clear() {
@@ -673,34 +1752,56 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	}
 
 	public void formFeed() {
-		getRpcProxy(ConsoleClientRpc.class).ff();
+		if (runLocked(Call.FORM_FEED, null)) {
+			return;
+		}
+		getClientRpc().ff();
 	}
 
 	public void carriageReturn() {
-		getRpcProxy(ConsoleClientRpc.class).cr();
+		if (runLocked(Call.CARRIAGE_RETURN, null)) {
+			return;
+		}
+		getClientRpc().cr();
 	}
 
 	public void lineFeed() {
-		getRpcProxy(ConsoleClientRpc.class).lf();
+		if (runLocked(Call.LINE_FEED, null)) {
+			return;
+		}
+		getClientRpc().lf();
 	}
 
 	public void clearCommandHistory() {
-		getRpcProxy(ConsoleClientRpc.class).clearHistory();
+		if (runLocked(Call.CLEAR_COMMAND_HISTORY, null)) {
+			return;
+		}
+		getClientRpc().clearHistory();
 	}
 
 	public void clearBuffer() {
-		getRpcProxy(ConsoleClientRpc.class).clearBuffer();
+		if (runLocked(Call.CLEAR_BUFFER, null)) {
+			return;
+		}
+		scrollback.clear();
+		getClientRpc().clearBuffer();
 	}
 
 	public void scrollToEnd() {
-		getRpcProxy(ConsoleClientRpc.class).scrollToEnd();
+		if (runLocked(Call.SCROLL_TO_END, null)) {
+			return;
+		}
+		getClientRpc().scrollToEnd();
 	}
 
 	/**
 	 * Focus input element of console.
 	 */
 	public void focusInput() {
-		getRpcProxy(ConsoleClientRpc.class).focusInput();
+		if (runLocked(Call.FOCUS_INPUT, null)) {
+			return;
+		}
+		getClientRpc().focusInput();
 	}
 
 	/**
@@ -736,6 +1837,8 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 			printStream = new PrintStream(new OutputStream() {
 
 				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				CharsetDecoder decoder = Charset.defaultCharset().newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+						.onUnmappableCharacter(CodingErrorAction.REPLACE);
 
 				@Override
 				public void write(final int b) throws IOException {
@@ -750,8 +1853,15 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 				public void flush() throws IOException {
 					super.flush();
 					buffer.flush();
-					Console.this.print(buffer.toString());
+					// Keep bytes of a character split between flushes for the
+					// next flush
+					final ByteBuffer in = ByteBuffer.wrap(buffer.toByteArray());
+					final CharBuffer out = CharBuffer.allocate((int) (in.remaining() * decoder.maxCharsPerByte()) + 1);
+					decoder.decode(in, out, false);
+					out.flip();
 					buffer.reset();
+					buffer.write(in.array(), in.position(), in.remaining());
+					Console.this.print(out.toString());
 				}
 			}, true);
 		}
@@ -834,6 +1944,7 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 
 	public void setANSIToCSSConverter(ANSICodeConverter converter) {
 		this.ansiToCSSconverter = converter != null ? converter : new DefaultANSICodeConverter();
+		ansiTokenizer = new ANSITokenizer(ansiToCSSconverter);
 	}
 
 	/**
@@ -853,6 +1964,9 @@ public class Console extends com.vaadin.ui.AbstractComponent implements Componen
 	 * @param isConvertANSIToCSS
 	 */
 	public void setConvertANSIToCSS(boolean isConvertANSIToCSS) {
+		if (this.isConvertANSIToCSS != isConvertANSIToCSS) {
+			ansiTokenizer.reset();
+		}
 		this.isConvertANSIToCSS = isConvertANSIToCSS;
 	}
 
@@ -0,0 +1,67 @@
+package org.vaadin8.console;
+
+/**
+ * Interfaces for streaming output with backpressure, with the same methods
+ * as the Reactive Streams interfaces in java.util.concurrent.Flow, which is
+ * not available in the Java version this add-on is built for.
+ *
+ * @see ConsoleSubscriber
+ * @see ConsolePublisher
+ */
+public final class ConsoleFlow {
+
+	private ConsoleFlow() {
+	}
+
+	/**
+	 * Producer of items for a {@link Subscriber}.
+	 */
+	public interface Publisher<T> {
+
+		/**
+		 * Add a subscriber, which is then called with
+		 * {@link Subscriber#onSubscribe(Subscription)}.
+		 *
+		 * @param subscriber
+		 */
+		public void subscribe(Subscriber<? super T> subscriber);
+	}
+
+	/**
+	 * Receiver of items, requesting them with its {@link Subscription}.
+	 */
+	public interface Subscriber<T> {
+
+		public void onSubscribe(Subscription subscription);
+
+		/**
+		 * Receive the next item, only after it was requested.
+		 *
+		 * @param item
+		 */
+		public void onNext(T item);
+
+		public void onError(Throwable throwable);
+
+		public void onComplete();
+	}
+
+	/**
+	 * Link between a publisher and a subscriber.
+	 */
+	public interface Subscription {
+
+		/**
+		 * Request more items.
+		 *
+		 * @param n
+		 *            number of items, greater than zero
+		 */
+		public void request(long n);
+
+		/**
+		 * Stop receiving items.
+		 */
+		public void cancel();
+	}
+}
@@ -0,0 +1,249 @@
+package org.vaadin8.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command started in the background with a trailing <code>&amp;</code>.
+ *
+ * Output of a background job is buffered by line and written with the job
+ * number as a tag, so that the lines of jobs running in parallel do not mix.
+ * The styles of the parts of a line are kept.
+ * Once brought to the foreground with <code>fg</code> its output is written
+ * as is.
+ *
+ * @see Console#setJobExecutor(java.util.concurrent.ExecutorService)
+ * @see Console#getJobs()
+ */
+public class ConsoleJob implements Serializable {
+
+	private static final long serialVersionUID = -6372408845110925166L;
+
+	/** Longest partial line kept before it is written. */
+	private static final int MAX_LINE_LENGTH = 8192;
+
+	private static final ThreadLocal<ConsoleJob> CURRENT = new ThreadLocal<ConsoleJob>();
+
+	private final int id;
+	private final String commandLine;
+	private final ConsoleOutputSink sink;
+	private final AtomicInteger outputLines = new AtomicInteger();
+	/* Text and class of the parts of the partial line */
+	private final List<String> lineTexts = new ArrayList<String>();
+	private final List<String> lineClassNames = new ArrayList<String>();
+	private int lineLength;
+	private volatile long started;
+	private volatile boolean foreground;
+	private volatile boolean killed;
+	private transient Future<?> future;
+
+	ConsoleJob(final int id, final String commandLine, final ConsoleOutputSink sink) {
+		this.id = id;
+		this.commandLine = commandLine;
+		this.sink = sink;
+	}
+
+	/**
+	 * @return number of the job, as used with <code>fg</code> and
+	 *         <code>kill</code>
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @return the command line without the trailing <code>&amp;</code>
+	 */
+	public String getCommandLine() {
+		return commandLine;
+	}
+
+	/**
+	 * @return false while the job waits for a free thread
+	 */
+	public boolean isStarted() {
+		return started > 0;
+	}
+
+	/**
+	 * @return milliseconds since the job started, 0 if not started
+	 */
+	public long getElapsedTime() {
+		final long s = started;
+		return s > 0 ? System.currentTimeMillis() - s : 0;
+	}
+
+	/**
+	 * @return number of lines written by the job
+	 */
+	public int getOutputLines() {
+		return outputLines.get();
+	}
+
+	public boolean isForeground() {
+		return foreground;
+	}
+
+	/**
+	 * @return the tag of the lines written in the background
+	 */
+	public String getTag() {
+		return "[" + id + "] ";
+	}
+
+	boolean isKilled() {
+		return killed;
+	}
+
+	Future<?> getFuture() {
+		return future;
+	}
+
+	void setFuture(final Future<?> future) {
+		this.future = future;
+	}
+
+	/**
+	 * Interrupt the job. Its result is ignored.
+	 */
+	void kill() {
+		killed = true;
+		if (future != null) {
+			future.cancel(true);
+		}
+	}
+
+	/**
+	 * Write the partial line and the further output as is.
+	 */
+	synchronized void setForeground() {
+		flush();
+		foreground = true;
+	}
+
+	/**
+	 * Run the command in the current thread, with the output of the thread
+	 * going to this job.
+	 */
+	Object execute(final Console console, final Console.Command cmd, final String[] argv) throws Exception {
+		started = System.currentTimeMillis();
+		CURRENT.set(this);
+		try {
+			return cmd.execute(console, argv);
+		} finally {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * Let the handler of the console report an exception of the command, with
+	 * the output going to this job.
+	 */
+	void handleException(final Console console, final Exception e, final Console.Command cmd, final String[] argv) {
+		CURRENT.set(this);
+		try {
+			console.getHandler().handleException(console, e, cmd, argv);
+		} finally {
+			CURRENT.remove();
+		}
+	}
+
+	/**
+	 * @return the job of the current thread, or null
+	 */
+	static ConsoleJob current() {
+		return CURRENT.get();
+	}
+
+	synchronized void print(final String output, final String className, final boolean newLine) {
+		final String text = output != null ? output : "";
+		if (foreground) {
+			outputLines.addAndGet(countLines(text) + (newLine ? 1 : 0));
+			if (newLine) {
+				sink.println(text, className);
+			} else {
+				sink.print(text, className);
+			}
+			return;
+		}
+		final String s = newLine ? text + "\n" : text;
+		int start = 0;
+		for (int i = s.indexOf('\n'); i >= 0; i = s.indexOf('\n', start)) {
+			appendToLine(s.substring(start, i), className);
+			writeLine();
+			start = i + 1;
+		}
+		if (start < s.length()) {
+			appendToLine(s.substring(start), className);
+			if (lineLength > MAX_LINE_LENGTH) {
+				writeLine();
+			}
+		}
+	}
+
+	private void appendToLine(final String text, final String className) {
+		if (text.length() == 0) {
+			return;
+		}
+		final int last = lineTexts.size() - 1;
+		if (last >= 0 && (className == null ? lineClassNames.get(last) == null : className.equals(lineClassNames.get(last)))) {
+			// Same style as the previous part
+			lineTexts.set(last, lineTexts.get(last) + text);
+		} else {
+			lineTexts.add(text);
+			lineClassNames.add(className);
+		}
+		lineLength += text.length();
+	}
+
+	/**
+	 * End the partial line in the background.
+	 * 
+	 * @return false if the job is in the foreground, where the line is ended
+	 *         by the console
+	 */
+	synchronized boolean endLine() {
+		if (foreground) {
+			return false;
+		}
+		flush();
+		return true;
+	}
+
+	/**
+	 * Write the partial line.
+	 */
+	synchronized void flush() {
+		if (lineLength > 0) {
+			writeLine();
+		}
+	}
+
+	private void writeLine() {
+		final int n = lineTexts.size();
+		final String[] texts = new String[n + 1];
+		final String[] classNames = new String[n + 1];
+		texts[0] = getTag();
+		for (int i = 0; i < n; i++) {
+			texts[i + 1] = lineTexts.get(i);
+			classNames[i + 1] = lineClassNames.get(i);
+		}
+		// One write, so that lines of other jobs do not come between
+		sink.println(texts, classNames);
+		lineTexts.clear();
+		lineClassNames.clear();
+		lineLength = 0;
+		outputLines.incrementAndGet();
+	}
+
+	private static int countLines(final String text) {
+		int count = 0;
+		for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,408 @@
+package org.vaadin8.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vaadin.server.ServiceDestroyEvent;
+import com.vaadin.server.ServiceDestroyListener;
+import com.vaadin.server.VaadinService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * Thread-safe output to a {@link Console}.
+ *
+ * Any thread can write to the sink without holding the session lock. The
+ * output is queued and written to the console in a single
+ * {@link UI#access(Runnable)} per flush interval. The UI needs server push or
+ * polling for the output to show up without user interaction.
+ *
+ * Only the newest {@link #MAX_QUEUED} writes are kept, e.g. while the
+ * console is not attached or when the writers are faster than the flushes.
+ * The number of dropped writes is reported with one line. Queued actions are
+ * always kept. Each flush writes only what was queued when it started, and
+ * leaves the rest to the next one.
+ *
+ * @see Console#getOutputSink()
+ */
+public class ConsoleOutputSink implements Serializable {
+
+	private static final long serialVersionUID = -2373519802963575125L;
+
+	/** Maximum number of queued writes. */
+	public static final int MAX_QUEUED = 10000;
+
+	private static final int DEFAULT_FLUSH_INTERVAL_MS = 100;
+
+	private static ScheduledExecutorService scheduler;
+	private static final Set<VaadinService> services = Collections
+			.newSetFromMap(new WeakHashMap<VaadinService, Boolean>());
+
+	private final Console console;
+	private final Queue<Output> queue = new ConcurrentLinkedQueue<Output>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger dropped = new AtomicInteger();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile int flushInterval = DEFAULT_FLUSH_INTERVAL_MS;
+	private volatile OutputGovernor governor;
+
+	ConsoleOutputSink(final Console console) {
+		this.console = console;
+	}
+
+	public Console getConsole() {
+		return console;
+	}
+
+	public int getFlushInterval() {
+		return flushInterval;
+	}
+
+	/**
+	 * @param flushInterval
+	 *            milliseconds between writes to the console
+	 */
+	public void setFlushInterval(final int flushInterval) {
+		this.flushInterval = flushInterval > 0 ? flushInterval : 0;
+	}
+
+	public OutputGovernor getGovernor() {
+		return governor;
+	}
+
+	/**
+	 * Limit the rate of the output written through this sink. Output written
+	 * to the console with the session locked is not limited.
+	 * 
+	 * @param governor
+	 *            governor used only by this sink, or null for no limit
+	 */
+	public void setGovernor(final OutputGovernor governor) {
+		this.governor = governor;
+	}
+
+	public void print(final String text) {
+		offer(new Output(text, null, false));
+	}
+
+	public void print(final String text, final String className) {
+		offer(new Output(text, className, false));
+	}
+
+	public void println(final String text) {
+		offer(new Output(text, null, true));
+	}
+
+	public void println(final String text, final String className) {
+		offer(new Output(text, className, true));
+	}
+
+	/**
+	 * Write a line made of parts with different styles at once.
+	 * 
+	 * @param texts
+	 *            text of each part
+	 * @param classNames
+	 *            CSS class name of each part, or null
+	 */
+	void println(final String[] texts, final String[] classNames) {
+		offer(new Output(texts, classNames));
+	}
+
+	/**
+	 * Notify the listener when the client has rendered the output written
+	 * before this call.
+	 */
+	void whenRendered(final Console.RenderedListener listener) {
+		execute(new Action() {
+
+			private static final long serialVersionUID = 3520472961781003377L;
+
+			@Override
+			public void run() {
+				console.whenRendered(listener);
+			}
+		});
+	}
+
+	/**
+	 * Run the action with the session locked, after the output written
+	 * before this call.
+	 */
+	void execute(final Action action) {
+		offer(new Output(action));
+	}
+
+	private void offer(final Output output) {
+		final OutputGovernor g = governor;
+		if (g != null && output.action == null) {
+			g.offer(this, output);
+		} else {
+			enqueue(output);
+		}
+	}
+
+	/**
+	 * @return number of writes waiting for the next flush
+	 */
+	int getQueuedCount() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the writes waiting for the next flush
+	 */
+	List<Output> getQueued() {
+		return new ArrayList<Output>(queue);
+	}
+
+	/**
+	 * Queue output for the next flush.
+	 */
+	void enqueue(final Output output) {
+		queue.offer(output);
+		if (queued.incrementAndGet() > MAX_QUEUED) {
+			// Keep the tail, and the actions
+			final Iterator<Output> i = queue.iterator();
+			while (i.hasNext()) {
+				final Output oldest = i.next();
+				if (oldest.action == null) {
+					if (queue.remove(oldest)) {
+						queued.decrementAndGet();
+						dropped.incrementAndGet();
+					}
+					break;
+				}
+			}
+		}
+		schedule();
+	}
+
+	/**
+	 * Schedule a flush unless one is scheduled already.
+	 */
+	void schedule() {
+		if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+			try {
+				getScheduler().schedule(new Runnable() {
+
+					@Override
+					public void run() {
+						access();
+					}
+				}, flushInterval, TimeUnit.MILLISECONDS);
+			} catch (final RejectedExecutionException e) {
+				// The service is being destroyed
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Let the governor write held output when its window ends.
+	 */
+	void scheduleRelease(final long delay) {
+		try {
+			getScheduler().schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					final OutputGovernor g = governor;
+					if (g != null) {
+						g.roll(ConsoleOutputSink.this, System.currentTimeMillis());
+					}
+				}
+			}, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+		} catch (final RejectedExecutionException e) {
+			// The service is being destroyed
+		}
+	}
+
+	private void access() {
+		final UI ui = console.getUI();
+		if (ui == null) {
+			// Scheduled again when attached
+			scheduled.set(false);
+			return;
+		}
+		boolean accessed = false;
+		try {
+			ui.access(new Runnable() {
+
+				@Override
+				public void run() {
+					drain();
+				}
+			});
+			accessed = true;
+		} finally {
+			if (!accessed) {
+				// E.g. detached meanwhile, scheduled again when attached
+				scheduled.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Write the output queued before this call to the console, so that faster
+	 * writers do not keep the session locked. Called with the session locked.
+	 */
+	private void drain() {
+		// Writes after this point schedule a new flush
+		scheduled.set(false);
+		final int n = dropped.getAndSet(0);
+		if (n > 0) {
+			console.println(n + " writes dropped", OutputGovernor.SUPPRESSED_CLASS_NAME);
+		}
+		Output output;
+		for (int i = queued.get(); i > 0 && (output = queue.poll()) != null; i--) {
+			queued.decrementAndGet();
+			if (output.action != null) {
+				output.action.run();
+			} else if (output.texts != null) {
+				final int last = output.texts.length - 1;
+				for (int j = 0; j < last; j++) {
+					console.print(output.texts[j], output.classNames[j]);
+				}
+				console.println(output.texts[last], output.classNames[last]);
+			} else if (output.newLine) {
+				console.println(output.getText(), output.className);
+			} else {
+				console.print(output.getText(), output.className);
+			}
+		}
+		// The rest in the next flush
+		schedule();
+	}
+
+	private ScheduledExecutorService getScheduler() {
+		final UI ui = console.getUI();
+		final VaadinSession session = ui != null ? ui.getSession() : null;
+		return getScheduler(session != null ? session.getService() : VaadinService.getCurrent());
+	}
+
+	/**
+	 * @return the scheduler, shut down when the last service using it is
+	 *         destroyed, e.g. when the application is redeployed
+	 */
+	private static synchronized ScheduledExecutorService getScheduler(final VaadinService service) {
+		if (service != null && services.add(service)) {
+			service.addServiceDestroyListener(new ServiceDestroyListener() {
+
+				private static final long serialVersionUID = -3187440651470562113L;
+
+				@Override
+				public void serviceDestroy(final ServiceDestroyEvent event) {
+					serviceDestroyed(service);
+				}
+			});
+		}
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "console-output-flush");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return scheduler;
+	}
+
+	private static synchronized void serviceDestroyed(final VaadinService service) {
+		services.remove(service);
+		if (services.isEmpty() && scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Action run in order with the output.
+	 */
+	interface Action extends Serializable {
+
+		void run();
+	}
+
+	static class Output implements Serializable {
+
+		private static final long serialVersionUID = 5012875620911369047L;
+
+		final String text;
+		final String className;
+		final boolean newLine;
+		final Action action;
+
+		/* Parts of a line with different styles, or null */
+		final String[] texts;
+		final String[] classNames;
+
+		Output(final String text, final String className, final boolean newLine) {
+			this.text = text;
+			this.className = className;
+			this.newLine = newLine;
+			action = null;
+			texts = null;
+			classNames = null;
+		}
+
+		Output(final String[] texts, final String[] classNames) {
+			final StringBuilder s = new StringBuilder();
+			for (final String t : texts) {
+				s.append(t);
+			}
+			text = s.toString();
+			className = null;
+			newLine = true;
+			action = null;
+			this.texts = texts;
+			this.classNames = classNames;
+		}
+
+		Output(final Action action) {
+			text = null;
+			className = null;
+			newLine = false;
+			this.action = action;
+			texts = null;
+			classNames = null;
+		}
+
+		String getText() {
+			return text;
+		}
+
+		/**
+		 * @return number of lines ended by this output
+		 */
+		int getLineCount() {
+			int count = newLine ? 1 : 0;
+			for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+				count++;
+			}
+			return count;
+		}
+
+		boolean isSameText(final Output other) {
+			return text.equals(other.text)
+					&& (className == null ? other.className == null : className.equals(other.className));
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package org.vaadin8.console;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publisher for producers that push text, e.g. a thread tailing a log.
+ *
+ * {@link #submit(CharSequence)} blocks until the subscriber requests more
+ * items, so with a {@link ConsoleSubscriber} the producer is slowed down to
+ * the speed of the client.
+ *
+ */
+public class ConsolePublisher implements ConsoleFlow.Publisher<CharSequence> {
+
+	private final Object signalLock = new Object();
+	private ConsoleFlow.Subscriber<? super CharSequence> subscriber;
+	private long demand;
+	private boolean cancelled;
+	private boolean closed;
+
+	@Override
+	public synchronized void subscribe(final ConsoleFlow.Subscriber<? super CharSequence> subscriber) {
+		if (this.subscriber != null) {
+			throw new IllegalStateException("Already subscribed");
+		}
+		this.subscriber = subscriber;
+		subscriber.onSubscribe(new ConsoleFlow.Subscription() {
+
+			@Override
+			public void request(final long n) {
+				synchronized (ConsolePublisher.this) {
+					demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+					ConsolePublisher.this.notifyAll();
+				}
+			}
+
+			@Override
+			public void cancel() {
+				synchronized (ConsolePublisher.this) {
+					cancelled = true;
+					ConsolePublisher.this.notifyAll();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Send an item, waiting until it is requested.
+	 *
+	 * @param item
+	 * @return false if there is no subscriber, or it has cancelled
+	 * @throws InterruptedException
+	 */
+	public boolean submit(final CharSequence item) throws InterruptedException {
+		return offer(item, Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Send an item, waiting at most the given time until it is requested.
+	 *
+	 * @param item
+	 * @param timeout
+	 * @param unit
+	 * @return false if not requested in time, or there is no subscriber, or
+	 *         it has cancelled
+	 * @throws InterruptedException
+	 */
+	public boolean offer(final CharSequence item, final long timeout, final TimeUnit unit) throws InterruptedException {
+		final ConsoleFlow.Subscriber<? super CharSequence> s;
+		synchronized (this) {
+			final long end = System.currentTimeMillis() + Math.min(unit.toMillis(timeout), Long.MAX_VALUE / 2);
+			while (demand == 0 && !cancelled && !closed && subscriber != null) {
+				final long wait = end - System.currentTimeMillis();
+				if (wait <= 0) {
+					return false;
+				}
+				wait(wait);
+			}
+			if (cancelled || closed || subscriber == null) {
+				return false;
+			}
+			demand--;
+			s = subscriber;
+		}
+		synchronized (signalLock) {
+			// Items are signalled one at a time
+			s.onNext(item);
+		}
+		return true;
+	}
+
+	/**
+	 * Complete the subscriber.
+	 */
+	public void close() {
+		final ConsoleFlow.Subscriber<? super CharSequence> s = takeSubscriber();
+		if (s != null) {
+			synchronized (signalLock) {
+				s.onComplete();
+			}
+		}
+	}
+
+	/**
+	 * Complete the subscriber with an error.
+	 *
+	 * @param throwable
+	 */
+	public void closeExceptionally(final Throwable throwable) {
+		final ConsoleFlow.Subscriber<? super CharSequence> s = takeSubscriber();
+		if (s != null) {
+			synchronized (signalLock) {
+				s.onError(throwable);
+			}
+		}
+	}
+
+	private synchronized ConsoleFlow.Subscriber<? super CharSequence> takeSubscriber() {
+		if (closed) {
+			return null;
+		}
+		closed = true;
+		notifyAll();
+		return cancelled ? null : subscriber;
+	}
+}
@@ -0,0 +1,91 @@
+package org.vaadin8.console;
+
+import java.io.Serializable;
+
+/**
+ * Subscriber writing the received text to a {@link Console}.
+ *
+ * Items are written through the {@link ConsoleOutputSink} of the console.
+ * New items are requested only when the client has rendered earlier ones, so
+ * at most a window of items is in transit and a slow client slows down the
+ * publisher.
+ *
+ * @see Console#createSubscriber()
+ */
+public class ConsoleSubscriber implements ConsoleFlow.Subscriber<CharSequence>, Serializable {
+
+	private static final long serialVersionUID = 4811622361389513203L;
+
+	/** Default number of items not yet rendered. */
+	public static final int DEFAULT_WINDOW = 16;
+
+	private final ConsoleOutputSink sink;
+	private final int window;
+	private final Console.RenderedListener renderedListener = new Console.RenderedListener() {
+
+		private static final long serialVersionUID = -7470391306962796357L;
+
+		@Override
+		public void rendered() {
+			final ConsoleFlow.Subscription s = subscription;
+			if (s != null) {
+				s.request(1);
+			}
+		}
+	};
+	private transient volatile ConsoleFlow.Subscription subscription;
+
+	/**
+	 * @param sink
+	 *            sink of the console
+	 * @param window
+	 *            number of items not yet rendered
+	 */
+	ConsoleSubscriber(final ConsoleOutputSink sink, final int window) {
+		this.sink = sink;
+		this.window = window > 0 ? window : 1;
+	}
+
+	public Console getConsole() {
+		return sink.getConsole();
+	}
+
+	@Override
+	public void onSubscribe(final ConsoleFlow.Subscription subscription) {
+		if (this.subscription != null) {
+			// One publisher at a time
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(window);
+	}
+
+	@Override
+	public void onNext(final CharSequence item) {
+		sink.print(item.toString());
+		sink.whenRendered(renderedListener);
+	}
+
+	@Override
+	public void onError(final Throwable throwable) {
+		subscription = null;
+		sink.println(String.valueOf(throwable));
+	}
+
+	@Override
+	public void onComplete() {
+		subscription = null;
+	}
+
+	/**
+	 * Stop receiving items.
+	 */
+	public void cancel() {
+		final ConsoleFlow.Subscription s = subscription;
+		subscription = null;
+		if (s != null) {
+			s.cancel();
+		}
+	}
+}
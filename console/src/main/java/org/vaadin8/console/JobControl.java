@@ -0,0 +1,190 @@
+package org.vaadin8.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Background jobs of a {@link Console}, and the <code>jobs</code>,
+ * <code>fg</code> and <code>kill</code> builtins. Called with the session
+ * locked.
+ */
+class JobControl implements Serializable {
+
+	private static final long serialVersionUID = 2931541735108851563L;
+
+	static final Set<String> BUILTINS = new HashSet<String>(Arrays.asList(new String[] { "jobs", "fg", "kill" }));
+
+	private final Console console;
+	private final TreeMap<Integer, ConsoleJob> jobs = new TreeMap<Integer, ConsoleJob>();
+	private transient ExecutorService executor;
+
+	JobControl(final Console console) {
+		this.console = console;
+	}
+
+	ExecutorService getExecutor() {
+		return executor;
+	}
+
+	void setExecutor(final ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	boolean isEnabled() {
+		return executor != null;
+	}
+
+	List<ConsoleJob> getJobs() {
+		return new ArrayList<ConsoleJob>(jobs.values());
+	}
+
+	/**
+	 * Start a command as a background job.
+	 */
+	void start(final Console.Command cmd, final String[] argv, final String commandLine) {
+		final ConsoleOutputSink sink = console.getOutputSink();
+		// Numbered from 1 again once all jobs have ended
+		final int id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+		final ConsoleJob job = new ConsoleJob(id, commandLine, sink);
+		try {
+			job.setFuture(executor.submit(new Runnable() {
+
+				@Override
+				public void run() {
+					Object result = null;
+					Exception exception = null;
+					try {
+						result = job.execute(console, cmd, argv);
+					} catch (final Exception e) {
+						exception = e;
+					}
+					final Object r = result;
+					final Exception e = exception;
+					// After the output of the job
+					sink.execute(new ConsoleOutputSink.Action() {
+
+						private static final long serialVersionUID = 4416315916622637000L;
+
+						@Override
+						public void run() {
+							finish(job, cmd, argv, r, e);
+						}
+					});
+				}
+			}));
+		} catch (final RejectedExecutionException e) {
+			console.getHandler().handleException(console, e, cmd, argv);
+			return;
+		}
+		jobs.put(id, job);
+		console.println(job.getTag() + commandLine);
+	}
+
+	/**
+	 * Write the result of a job and remove it.
+	 */
+	private void finish(final ConsoleJob job, final Console.Command cmd, final String[] argv, final Object result,
+			final Exception e) {
+		if (job.isKilled()) {
+			return;
+		}
+		jobs.remove(job.getId());
+		// Tagged like the output of the job
+		if (e != null) {
+			job.handleException(console, e, cmd, argv);
+		} else if (result != null) {
+			job.print("" + result, null, false);
+		}
+		job.flush();
+		final ConsoleOutputSink sink = console.getOutputSink();
+		if (console.isForegroundJob(job)) {
+			sink.execute(new ConsoleOutputSink.Action() {
+
+				private static final long serialVersionUID = 4052216226473766075L;
+
+				@Override
+				public void run() {
+					console.endForegroundJob();
+				}
+			});
+		} else {
+			sink.println(job.getTag() + (e != null ? "Exit" : "Done") + "  " + job.getCommandLine());
+		}
+	}
+
+	/**
+	 * Remove a foreground job cancelled with Ctrl-C.
+	 */
+	void cancelled(final ConsoleJob job) {
+		job.kill();
+		jobs.remove(job.getId());
+	}
+
+	void execute(final String[] argv) {
+		if ("jobs".equals(argv[0])) {
+			listJobs();
+			return;
+		}
+		final ConsoleJob job = findJob(argv);
+		if (job == null) {
+			return;
+		}
+		if ("fg".equals(argv[0])) {
+			console.println(job.getCommandLine());
+			job.setForeground();
+			console.startForegroundJob(job);
+		} else {
+			job.kill();
+			jobs.remove(job.getId());
+			console.getOutputSink().println(job.getTag() + "Killed  " + job.getCommandLine());
+		}
+	}
+
+	private void listJobs() {
+		for (final ConsoleJob job : jobs.values()) {
+			console.println(String.format("[%d]  %-8s %8s %6d lines  %s", job.getId(),
+					job.isStarted() ? "Running" : "Waiting", formatElapsed(job.getElapsedTime()),
+					job.getOutputLines(), job.getCommandLine()));
+		}
+	}
+
+	/**
+	 * @return the job given as <code>%n</code> or <code>n</code>, or the
+	 *         newest job without an argument
+	 */
+	private ConsoleJob findJob(final String[] argv) {
+		if (argv.length < 2) {
+			if (jobs.isEmpty()) {
+				console.println(argv[0] + ": no current job");
+				return null;
+			}
+			return jobs.lastEntry().getValue();
+		}
+		final String spec = argv[1].startsWith("%") ? argv[1].substring(1) : argv[1];
+		try {
+			final ConsoleJob job = jobs.get(Integer.parseInt(spec));
+			if (job != null) {
+				return job;
+			}
+		} catch (final NumberFormatException e) {
+			// No such job
+		}
+		console.println(argv[0] + ": " + argv[1] + ": no such job");
+		return null;
+	}
+
+	static String formatElapsed(final long millis) {
+		final long s = millis / 1000;
+		if (s >= 3600) {
+			return String.format("%d:%02d:%02d", s / 3600, s / 60 % 60, s % 60);
+		}
+		return String.format("%d:%02d", s / 60, s % 60);
+	}
+}
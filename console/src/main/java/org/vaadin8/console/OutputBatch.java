@@ -0,0 +1,134 @@
+package org.vaadin8.console;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.vaadin8.console.client.ConsoleClientRpc;
+
+/**
+ * Server-side accumulator for console output.
+ *
+ * Consecutive text operations are merged into one text block and a list of
+ * runs, each run being an (operation, end offset, class index) triple. The
+ * whole batch is sent to the client with a single
+ * {@link ConsoleClientRpc#write(String, int[], String[])} call.
+ *
+ */
+class OutputBatch implements Serializable {
+
+	private static final long serialVersionUID = -3386720447017961125L;
+	private static final int RUN_SIZE = 3;
+
+	private final StringBuilder text = new StringBuilder();
+	private final List<String> classNames = new ArrayList<String>();
+	private int[] runs = new int[RUN_SIZE * 16];
+	private int runsLength;
+	private boolean printed;
+
+	public boolean isEmpty() {
+		return runsLength == 0;
+	}
+
+	/**
+	 * Print text, i.e. output it after the active prompt content.
+	 *
+	 * @param string
+	 * @param className
+	 *            CSS class name or null
+	 */
+	public void print(final String string, final String className) {
+		if (printed) {
+			// Prompt is already flushed by the preceding print
+			append(string, className);
+			return;
+		}
+		printed = true;
+		addRun(ConsoleClientRpc.WRITE_PRINT, string, className);
+	}
+
+	/**
+	 * Append text to the last printed line.
+	 *
+	 * @param string
+	 * @param className
+	 *            CSS class name or null
+	 */
+	public void append(final String string, final String className) {
+		if (string == null || string.length() == 0) {
+			return;
+		}
+		addRun(ConsoleClientRpc.WRITE_APPEND, string, className);
+	}
+
+	public void newLine() {
+		append("\n", null);
+	}
+
+	public void newLineIfNotEndsWithNewLine() {
+		if (text.length() == 0) {
+			// Depends on what the client already has in its buffer
+			addRun(ConsoleClientRpc.WRITE_NEWLINE_IF_NEEDED, null, null);
+		} else if (text.charAt(text.length() - 1) != '\n') {
+			newLine();
+		}
+	}
+
+	private void addRun(final int op, final String string, final String className) {
+		final int classIndex = indexOfClass(className);
+		if (string != null) {
+			text.append(string);
+		}
+		if (runsLength > 0 && op != ConsoleClientRpc.WRITE_NEWLINE_IF_NEEDED) {
+			final int lastOp = runs[runsLength - RUN_SIZE];
+			if (lastOp != ConsoleClientRpc.WRITE_NEWLINE_IF_NEEDED && op == ConsoleClientRpc.WRITE_APPEND
+					&& runs[runsLength - 1] == classIndex) {
+				// Same style as the previous run, just extend it
+				runs[runsLength - 2] = text.length();
+				return;
+			}
+		}
+		if (runsLength + RUN_SIZE > runs.length) {
+			final int[] grown = new int[runs.length * 2];
+			System.arraycopy(runs, 0, grown, 0, runsLength);
+			runs = grown;
+		}
+		runs[runsLength++] = op;
+		runs[runsLength++] = text.length();
+		runs[runsLength++] = classIndex;
+	}
+
+	private int indexOfClass(String className) {
+		if (className == null || (className = className.trim()).length() == 0) {
+			// Blank class is the same as no class
+			return -1;
+		}
+		int i = classNames.indexOf(className);
+		if (i < 0) {
+			i = classNames.size();
+			classNames.add(className);
+		}
+		return i;
+	}
+
+	public String getText() {
+		return text.toString();
+	}
+
+	public int[] getRuns() {
+		final int[] res = new int[runsLength];
+		System.arraycopy(runs, 0, res, 0, runsLength);
+		return res;
+	}
+
+	public String[] getClassNames() {
+		return classNames.toArray(new String[classNames.size()]);
+	}
+
+	public void clear() {
+		text.setLength(0);
+		classNames.clear();
+		runsLength = 0;
+		printed = false;
+	}
+}
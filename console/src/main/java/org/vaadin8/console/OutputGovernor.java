@@ -0,0 +1,263 @@
+package org.vaadin8.console;
+
+import java.io.Serializable;
+import java.util.LinkedList;
+
+/**
+ * Rate limit for the output written through a {@link ConsoleOutputSink}.
+ *
+ * The output is counted in windows of one second. When a window exceeds the
+ * maximum number of lines or characters, the {@link Policy} decides what
+ * happens to the rest of the output in that window. A single write is always
+ * accepted at the start of a window, however long it is.
+ *
+ * A governor keeps the state of the current window, so each sink needs its
+ * own instance.
+ *
+ * Only the output written through the sink is limited, i.e. the output of
+ * other threads. Output written to the console with the session locked is
+ * not, since blocking or holding it there would hold the lock.
+ *
+ * @see ConsoleOutputSink#setGovernor(OutputGovernor)
+ */
+public class OutputGovernor implements Serializable {
+
+	private static final long serialVersionUID = 1809281446155640211L;
+
+	/** CSS class name of the lines reporting suppressed output. */
+	public static final String SUPPRESSED_CLASS_NAME = "suppressed";
+
+	private static final long WINDOW_MS = 1000;
+
+	/**
+	 * What to do with output over the limit.
+	 */
+	public enum Policy {
+
+		/** Block the writing thread until the next window. */
+		BLOCK,
+
+		/** Drop the output and report the number of lines dropped. */
+		DROP,
+
+		/**
+		 * Hold the newest output, up to the limit, and write it in the next
+		 * window. Older output is dropped and reported.
+		 */
+		KEEP_NEWEST,
+
+		/**
+		 * Report repeated identical lines as one line with the number of
+		 * repeats. Output over the limit is dropped as with {@link #DROP}.
+		 */
+		COLLAPSE_REPEATS
+	}
+
+	private final Policy policy;
+	private final int maxLines;
+	private final int maxChars;
+
+	private long windowStart = -1;
+	private int lines;
+	private int chars;
+	private Marker suppressed;
+	private final LinkedList<ConsoleOutputSink.Output> held = new LinkedList<ConsoleOutputSink.Output>();
+	private int heldLines;
+	private int heldChars;
+	private ConsoleOutputSink.Output lastLine;
+	private Marker repeated;
+
+	/**
+	 * @param policy
+	 *            what to do with output over the limit
+	 * @param maxLinesPerSecond
+	 *            maximum number of lines, 0 for no limit
+	 * @param maxCharsPerSecond
+	 *            maximum number of characters, 0 for no limit
+	 */
+	public OutputGovernor(final Policy policy, final int maxLinesPerSecond, final int maxCharsPerSecond) {
+		this.policy = policy;
+		maxLines = Math.max(maxLinesPerSecond, 0);
+		maxChars = Math.max(maxCharsPerSecond, 0);
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	public int getMaxLinesPerSecond() {
+		return maxLines;
+	}
+
+	public int getMaxCharsPerSecond() {
+		return maxChars;
+	}
+
+	/**
+	 * Pass output to the sink, or hold, drop or collapse it.
+	 */
+	synchronized void offer(final ConsoleOutputSink sink, final ConsoleOutputSink.Output output) {
+		long now = System.currentTimeMillis();
+		roll(sink, now);
+
+		if (policy == Policy.COLLAPSE_REPEATS && output.newLine) {
+			if (lastLine != null && output.isSameText(lastLine)) {
+				if (repeated == null || repeated.closed) {
+					repeated = new Marker("last line repeated %d times");
+					sink.enqueue(repeated);
+				}
+				repeated.count++;
+				return;
+			}
+			lastLine = output;
+		}
+
+		final int outputLines = output.getLineCount();
+		final int outputChars = output.text.length();
+		// Held output stays in order
+		while (!held.isEmpty() || isOverLimit(lines, chars, outputLines, outputChars)) {
+			switch (policy) {
+			case BLOCK:
+				try {
+					wait(Math.max(windowStart + WINDOW_MS - now, 1));
+				} catch (final InterruptedException e) {
+					// Write it anyway
+					Thread.currentThread().interrupt();
+					break;
+				}
+				now = System.currentTimeMillis();
+				roll(sink, now);
+				continue;
+			case KEEP_NEWEST:
+				if (held.isEmpty()) {
+					sink.scheduleRelease(windowStart + WINDOW_MS - now);
+				}
+				held.add(output);
+				heldLines += outputLines;
+				heldChars += outputChars;
+				while (held.size() > 1 && isHeldOverLimit()) {
+					final ConsoleOutputSink.Output dropped = held.removeFirst();
+					heldLines -= dropped.getLineCount();
+					heldChars -= dropped.text.length();
+					suppress(null, dropped.getLineCount(), dropped.text.length());
+				}
+				return;
+			default:
+				suppress(sink, outputLines, outputChars);
+				return;
+			}
+			break;
+		}
+		lines += outputLines;
+		chars += outputChars;
+		sink.enqueue(output);
+	}
+
+	/**
+	 * Start a new window if the current one has ended, writing the held
+	 * output.
+	 */
+	synchronized void roll(final ConsoleOutputSink sink, final long now) {
+		if (now - windowStart < WINDOW_MS) {
+			return;
+		}
+		windowStart = now;
+		lines = 0;
+		chars = 0;
+		if (suppressed != null && !suppressed.enqueued) {
+			sink.enqueue(suppressed);
+			suppressed.enqueued = true;
+		}
+		suppressed = null;
+		while (!held.isEmpty()) {
+			final ConsoleOutputSink.Output output = held.removeFirst();
+			lines += output.getLineCount();
+			chars += output.text.length();
+			sink.enqueue(output);
+		}
+		heldLines = 0;
+		heldChars = 0;
+		notifyAll();
+	}
+
+	/**
+	 * @return text of a marker, closing it so that further suppressed output
+	 *         gets a new marker
+	 */
+	synchronized String close(final Marker marker) {
+		marker.closed = true;
+		if (marker.count == 0) {
+			// Only text without line ends
+			return String.format("%d characters suppressed", marker.chars);
+		}
+		return String.format(marker.format, marker.count);
+	}
+
+	/**
+	 * @return true if the held output alone exceeds the limits of a window
+	 */
+	private boolean isHeldOverLimit() {
+		return maxLines > 0 && heldLines > maxLines || maxChars > 0 && heldChars > maxChars;
+	}
+
+	/**
+	 * @return number of writes held for the next window
+	 */
+	synchronized int getHeldCount() {
+		return held.size();
+	}
+
+	private boolean isOverLimit(final int lines, final int chars, final int addLines, final int addChars) {
+		if (lines == 0 && chars == 0) {
+			return false;
+		}
+		return maxLines > 0 && lines + addLines > maxLines || maxChars > 0 && chars + addChars > maxChars;
+	}
+
+	/**
+	 * Count suppressed lines and characters in the marker of this window.
+	 *
+	 * @param sink
+	 *            to write the marker in place, or null to write it when the
+	 *            window ends
+	 */
+	private void suppress(final ConsoleOutputSink sink, final int count, final int chars) {
+		if (count == 0 && chars == 0) {
+			return;
+		}
+		if (suppressed == null || suppressed.closed) {
+			suppressed = new Marker("%d lines suppressed");
+			if (sink != null) {
+				sink.enqueue(suppressed);
+				suppressed.enqueued = true;
+			}
+		}
+		suppressed.count += count;
+		suppressed.chars += chars;
+	}
+
+	/**
+	 * Line reporting suppressed output, with a count that is final once
+	 * written.
+	 */
+	class Marker extends ConsoleOutputSink.Output {
+
+		private static final long serialVersionUID = -2120651263911123574L;
+
+		final String format;
+		int count;
+		int chars;
+		boolean closed;
+		boolean enqueued;
+
+		Marker(final String format) {
+			super("", SUPPRESSED_CLASS_NAME, true);
+			this.format = format;
+		}
+
+		@Override
+		String getText() {
+			return close(this);
+		}
+	}
+}
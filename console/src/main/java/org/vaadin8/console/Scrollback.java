@@ -0,0 +1,373 @@
+package org.vaadin8.console;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server-side copy of the console output.
+ *
+ * Text is kept as UTF-8 bytes with an index of line start offsets and a list
+ * of style runs (start offset, class). Lines are addressed by their absolute
+ * number, counted from the first line ever written, so the numbers stay
+ * valid when the oldest lines are dropped.
+ *
+ * With disk spilling enabled only the newest {@link #HOT_LINES} lines are
+ * kept on heap, older lines are moved to a {@link ScrollbackFile}. The lines
+ * on disk are not serialized: the files are deleted when the scrollback is
+ * serialized and the lines are lost.
+ *
+ */
+class Scrollback implements Serializable {
+
+	private static final long serialVersionUID = 6260101856413751524L;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Number of lines kept on heap when spilling to disk. */
+	static final int HOT_LINES = 1000;
+
+	private byte[] data = new byte[1024];
+	private int dataLength;
+
+	/** Start offset of each line in data. The last line is still open. */
+	private int[] lineStarts = new int[64];
+	private int lineCount = 1;
+
+	/** Absolute number of the first line kept. */
+	private long firstLine;
+
+	private int[] runStarts = new int[16];
+	private int[] runClasses = new int[16];
+	private int runCount;
+	private final List<String> classNames = new ArrayList<String>();
+
+	private boolean diskSpill;
+	private transient ScrollbackFile spill;
+
+	/**
+	 * Append text to the last line. New lines are started at each '\n'.
+	 *
+	 * @param text
+	 * @param className
+	 *            CSS class name or null
+	 */
+	public void append(final String text, final String className) {
+		if (text == null || text.length() == 0) {
+			return;
+		}
+		startRun(className);
+		final int length = text.length();
+		for (int i = 0; i < length; i++) {
+			final char c = text.charAt(i);
+			if (c == '\n') {
+				newLine();
+			} else if (c < 0x80) {
+				ensureData(1);
+				data[dataLength++] = (byte) c;
+			} else if (c < 0x800) {
+				ensureData(2);
+				data[dataLength++] = (byte) (0xc0 | (c >> 6));
+				data[dataLength++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+				final int cp = Character.toCodePoint(c, text.charAt(++i));
+				ensureData(4);
+				data[dataLength++] = (byte) (0xf0 | (cp >> 18));
+				data[dataLength++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				data[dataLength++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				data[dataLength++] = (byte) (0x80 | (cp & 0x3f));
+			} else {
+				ensureData(3);
+				data[dataLength++] = (byte) (0xe0 | (c >> 12));
+				data[dataLength++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				data[dataLength++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	public void newLine() {
+		if (lineCount == lineStarts.length) {
+			lineStarts = grow(lineStarts, lineCount * 2);
+		}
+		lineStarts[lineCount++] = dataLength;
+	}
+
+	/**
+	 * @return true if the last line has text, i.e. a new line is needed
+	 *         before starting a new paragraph
+	 */
+	public boolean isLastLineOpen() {
+		return lineStarts[lineCount - 1] < dataLength;
+	}
+
+	public boolean isEmpty() {
+		return lineCount == 1 && dataLength == 0;
+	}
+
+	/**
+	 * @return absolute number of the first line kept, on disk or on heap
+	 */
+	public long getFirstLine() {
+		return spill != null ? spill.getFirstLine() : firstLine;
+	}
+
+	/**
+	 * @return absolute number of the line after the last line
+	 */
+	public long getEndLine() {
+		return firstLine + lineCount;
+	}
+
+	public int getLineCount() {
+		return (int) (getEndLine() - getFirstLine());
+	}
+
+	/**
+	 * @return number of bytes used by the text of the lines kept on heap
+	 */
+	public int getDataLength() {
+		return dataLength;
+	}
+
+	public boolean isDiskSpill() {
+		return diskSpill;
+	}
+
+	/**
+	 * Enable or disable moving old lines to disk. Lines already on disk are
+	 * dropped when disabled.
+	 *
+	 * @param diskSpill
+	 */
+	public void setDiskSpill(final boolean diskSpill) {
+		this.diskSpill = diskSpill;
+		if (!diskSpill) {
+			close();
+		}
+	}
+
+	/**
+	 * Delete the disk tier, if any.
+	 */
+	public void close() {
+		if (spill != null) {
+			spill.close();
+			spill = null;
+		}
+	}
+
+	public void clear() {
+		if (spill != null) {
+			spill.clear(firstLine + lineCount);
+		}
+		firstLine += lineCount;
+		dataLength = 0;
+		lineCount = 1;
+		lineStarts[0] = 0;
+		runCount = 0;
+		classNames.clear();
+	}
+
+	/**
+	 * Drop the oldest lines so that at most maxLines lines are kept, moving
+	 * them to disk first if enabled.
+	 *
+	 * Memory is compacted only when the number of extra lines is a quarter of
+	 * the limit, so that trimming stays cheap when called after every write.
+	 *
+	 * @param maxLines
+	 */
+	public void trim(final int maxLines) {
+		final int limit = maxLines > 0 ? maxLines : 1;
+		if (diskSpill && limit > HOT_LINES) {
+			if (lineCount - HOT_LINES > HOT_LINES / 4) {
+				spillLines(lineCount - HOT_LINES);
+			}
+		} else if (lineCount - limit > limit / 4) {
+			dropLines(lineCount - limit);
+		}
+		if (spill != null) {
+			spill.trim(getEndLine() - limit);
+		}
+	}
+
+	/**
+	 * Move the oldest lines to the disk tier. The lines are dropped if the
+	 * disk tier cannot be written.
+	 */
+	private void spillLines(final int count) {
+		try {
+			if (spill == null) {
+				spill = new ScrollbackFile(firstLine);
+			}
+			final int[] lineRunOffsets = new int[runCount + 1];
+			final String[] lineRunClassNames = new String[runCount + 1];
+			int run = -1;
+			for (int line = 0; line < count; line++) {
+				final int start = lineStarts[line];
+				final int end = lineStarts[line + 1];
+				while (run + 1 < runCount && runStarts[run + 1] <= start) {
+					run++;
+				}
+				int lineRunCount = 0;
+				lineRunOffsets[lineRunCount] = 0;
+				lineRunClassNames[lineRunCount++] = getClassName(run);
+				while (run + 1 < runCount && runStarts[run + 1] < end) {
+					run++;
+					lineRunOffsets[lineRunCount] = runStarts[run] - start;
+					lineRunClassNames[lineRunCount++] = getClassName(run);
+				}
+				spill.appendLine(data, start, end - start, lineRunOffsets, lineRunClassNames, lineRunCount);
+			}
+		} catch (final IOException e) {
+			Logger.getLogger(Scrollback.class.getName()).log(Level.WARNING, "Could not move scrollback to disk", e);
+			diskSpill = false;
+			close();
+		}
+		dropLines(count);
+	}
+
+	private void dropLines(final int count) {
+		final int offset = lineStarts[count];
+
+		// Text
+		System.arraycopy(data, offset, data, 0, dataLength - offset);
+		dataLength -= offset;
+		if (data.length > 1024 && dataLength < data.length / 4) {
+			data = grow(data, data.length / 2);
+		}
+
+		// Line index
+		lineCount -= count;
+		for (int i = 0; i < lineCount; i++) {
+			lineStarts[i] = lineStarts[i + count] - offset;
+		}
+		firstLine += count;
+
+		// Style runs, keeping the run in effect at the new start
+		int firstRun = 0;
+		while (firstRun + 1 < runCount && runStarts[firstRun + 1] <= offset) {
+			firstRun++;
+		}
+		runCount -= firstRun;
+		for (int i = 0; i < runCount; i++) {
+			runStarts[i] = Math.max(runStarts[i + firstRun] - offset, 0);
+			runClasses[i] = runClasses[i + firstRun];
+		}
+	}
+
+	private void startRun(final String className) {
+		final int classIndex = indexOfClass(className);
+		if (runCount > 0) {
+			if (runClasses[runCount - 1] == classIndex) {
+				return;
+			}
+			if (runStarts[runCount - 1] == dataLength) {
+				// Previous run is empty
+				if (runCount > 1 && runClasses[runCount - 2] == classIndex) {
+					runCount--;
+				} else {
+					runClasses[runCount - 1] = classIndex;
+				}
+				return;
+			}
+		} else if (classIndex < 0) {
+			return;
+		}
+		if (runCount == runStarts.length) {
+			runStarts = grow(runStarts, runCount * 2);
+			runClasses = grow(runClasses, runCount * 2);
+		}
+		runStarts[runCount] = dataLength;
+		runClasses[runCount++] = classIndex;
+	}
+
+	private int indexOfClass(String className) {
+		if (className == null || (className = className.trim()).length() == 0) {
+			return -1;
+		}
+		int i = classNames.indexOf(className);
+		if (i < 0) {
+			i = classNames.size();
+			classNames.add(className);
+		}
+		return i;
+	}
+
+	/**
+	 * Write lines to an output batch.
+	 *
+	 * @param batch
+	 * @param from
+	 *            absolute number of the first line, inclusive
+	 * @param to
+	 *            absolute number of the last line, exclusive
+	 */
+	public void writeTo(final OutputBatch batch, final long from, final long to) {
+		if (spill != null) {
+			final long spillEnd = Math.min(to, firstLine);
+			for (long line = Math.max(from, spill.getFirstLine()); line < spillEnd; line++) {
+				spill.writeLineTo(batch, line);
+			}
+		}
+		final int fromIndex = (int) Math.max(from - firstLine, 0);
+		final int toIndex = (int) Math.min(to - firstLine, lineCount);
+		int run = -1;
+		for (int line = fromIndex; line < toIndex; line++) {
+			final int start = lineStarts[line];
+			final int end = line + 1 < lineCount ? lineStarts[line + 1] : dataLength;
+			int pos = start;
+			while (run + 1 < runCount && runStarts[run + 1] <= pos) {
+				run++;
+			}
+			while (pos < end) {
+				final int runEnd = run + 1 < runCount ? Math.min(runStarts[run + 1], end) : end;
+				batch.append(new String(data, pos, runEnd - pos, UTF8), getClassName(run));
+				pos = runEnd;
+				if (run + 1 < runCount && runStarts[run + 1] <= pos) {
+					run++;
+				}
+			}
+			if (line + 1 < lineCount) {
+				batch.append("\n", getClassName(run));
+			}
+		}
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException {
+		if (spill != null) {
+			// Not restored, so not kept either
+			Logger.getLogger(Scrollback.class.getName()).log(Level.INFO,
+					"Dropping " + (firstLine - spill.getFirstLine()) + " lines on disk for serialization");
+			close();
+		}
+		out.defaultWriteObject();
+	}
+
+	private String getClassName(final int run) {
+		return run >= 0 && runClasses[run] >= 0 ? classNames.get(runClasses[run]) : null;
+	}
+
+	private void ensureData(final int bytes) {
+		if (dataLength + bytes > data.length) {
+			data = grow(data, Math.max(data.length * 2, dataLength + bytes));
+		}
+	}
+
+	private static int[] grow(final int[] array, final int size) {
+		final int[] res = new int[size];
+		System.arraycopy(array, 0, res, 0, Math.min(array.length, size));
+		return res;
+	}
+
+	private static byte[] grow(final byte[] array, final int size) {
+		final byte[] res = new byte[size];
+		System.arraycopy(array, 0, res, 0, Math.min(array.length, size));
+		return res;
+	}
+
+}
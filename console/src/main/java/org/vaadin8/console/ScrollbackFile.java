@@ -0,0 +1,245 @@
+package org.vaadin8.console;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk tier of a {@link Scrollback}.
+ *
+ * Lines are appended to memory-mapped segment files. Each segment starts with
+ * an index of line offsets followed by the line records: text length, style
+ * run count, (offset, class) pairs and the UTF-8 text. Segments whose lines
+ * have all been trimmed are deleted, with the class names they use.
+ *
+ */
+class ScrollbackFile implements Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Maximum number of lines in one segment. */
+	static final int SEGMENT_LINES = 16384;
+
+	/** Size of the text area of one segment. */
+	static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	private final List<Segment> segments = new ArrayList<Segment>();
+	private long firstLine;
+	private long endLine;
+
+	/**
+	 * @param firstLine
+	 *            absolute number of the first line to be appended
+	 */
+	public ScrollbackFile(final long firstLine) {
+		this.firstLine = firstLine;
+		endLine = firstLine;
+	}
+
+	/**
+	 * @return absolute number of the first line kept
+	 */
+	public long getFirstLine() {
+		return firstLine;
+	}
+
+	/**
+	 * @return absolute number of the line after the last line
+	 */
+	public long getEndLine() {
+		return endLine;
+	}
+
+	/**
+	 * Append a line.
+	 *
+	 * @param data
+	 *            UTF-8 text
+	 * @param offset
+	 * @param length
+	 * @param runOffsets
+	 *            start offsets of style runs in the line, the first is 0
+	 * @param runClassNames
+	 *            class of each run or null
+	 * @param runCount
+	 * @throws IOException
+	 *             if a new segment file cannot be created
+	 */
+	public void appendLine(final byte[] data, final int offset, int length, final int[] runOffsets, final String[] runClassNames, int runCount)
+			throws IOException {
+		if (length > SEGMENT_BYTES - 8 - 8 * runCount) {
+			length = SEGMENT_BYTES - 8 - 8 * runCount;
+			// Not within a multi-byte character
+			while (length > 0 && (data[offset + length] & 0xC0) == 0x80) {
+				length--;
+			}
+			// Nor runs starting after the end
+			while (runCount > 1 && runOffsets[runCount - 1] >= length) {
+				runCount--;
+			}
+		}
+		final int headerSize = 8 + 8 * runCount;
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if (segment == null || !segment.hasRoom(headerSize + length)) {
+			segment = new Segment(endLine);
+			segments.add(segment);
+		}
+		segment.index.putInt(segment.lineCount * 4, segment.data.position());
+		segment.data.putInt(length);
+		segment.data.putInt(runCount);
+		for (int i = 0; i < runCount; i++) {
+			segment.data.putInt(runOffsets[i]);
+			segment.data.putInt(segment.indexOfClass(runClassNames[i]));
+		}
+		segment.data.put(data, offset, length);
+		segment.lineCount++;
+		endLine++;
+	}
+
+	/**
+	 * Write a line with its terminating new line to an output batch.
+	 *
+	 * @param batch
+	 * @param line
+	 *            absolute line number
+	 */
+	public void writeLineTo(final OutputBatch batch, final long line) {
+		Segment segment = null;
+		for (final Segment s : segments) {
+			if (line >= s.firstLine && line < s.firstLine + s.lineCount) {
+				segment = s;
+				break;
+			}
+		}
+		if (segment == null || line < firstLine) {
+			return;
+		}
+		final ByteBuffer record = segment.data.duplicate();
+		record.position(segment.index.getInt((int) (line - segment.firstLine) * 4));
+		final int length = record.getInt();
+		final int runCount = record.getInt();
+		final int[] runs = new int[runCount * 2];
+		for (int i = 0; i < runs.length; i++) {
+			runs[i] = record.getInt();
+		}
+		final byte[] text = new byte[length];
+		record.get(text);
+		String className = null;
+		for (int i = 0; i < runCount; i++) {
+			final int start = runs[2 * i];
+			final int end = i + 1 < runCount ? runs[2 * i + 2] : length;
+			className = runs[2 * i + 1] >= 0 ? segment.classNames.get(runs[2 * i + 1]) : null;
+			batch.append(new String(text, start, end - start, UTF8), className);
+		}
+		batch.append("\n", className);
+	}
+
+	/**
+	 * Drop the lines before the given line, deleting segments that only have
+	 * dropped lines.
+	 *
+	 * @param line
+	 *            absolute number of the first line to keep
+	 */
+	public void trim(final long line) {
+		if (line <= firstLine) {
+			return;
+		}
+		firstLine = Math.min(line, endLine);
+		while (!segments.isEmpty()) {
+			final Segment segment = segments.get(0);
+			if (segment.firstLine + segment.lineCount > firstLine) {
+				break;
+			}
+			segment.close();
+			segments.remove(0);
+		}
+	}
+
+	/**
+	 * Drop all lines.
+	 *
+	 * @param line
+	 *            absolute number of the next line to be appended
+	 */
+	public void clear(final long line) {
+		close();
+		firstLine = line;
+		endLine = line;
+	}
+
+	/**
+	 * Delete all segment files.
+	 */
+	@Override
+	public void close() {
+		for (final Segment segment : segments) {
+			segment.close();
+		}
+		segments.clear();
+	}
+
+	private static class Segment {
+
+		final long firstLine;
+		final List<String> classNames = new ArrayList<String>();
+		final File file;
+		final RandomAccessFile raf;
+		final MappedByteBuffer index;
+		final MappedByteBuffer data;
+		int lineCount;
+
+		Segment(final long firstLine) throws IOException {
+			this.firstLine = firstLine;
+			// Deleted on trim and close, not on exit to not keep the name
+			// of every segment until then
+			file = File.createTempFile("console-scrollback", ".seg");
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				index = raf.getChannel().map(MapMode.READ_WRITE, 0, SEGMENT_LINES * 4L);
+				data = raf.getChannel().map(MapMode.READ_WRITE, SEGMENT_LINES * 4L, SEGMENT_BYTES);
+			} catch (final IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		int indexOfClass(final String className) {
+			if (className == null) {
+				return -1;
+			}
+			int i = classNames.indexOf(className);
+			if (i < 0) {
+				i = classNames.size();
+				classNames.add(className);
+			}
+			return i;
+		}
+
+		boolean hasRoom(final int recordSize) {
+			return lineCount < SEGMENT_LINES && data.remaining() >= recordSize;
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (final IOException e) {
+				Logger.getLogger(ScrollbackFile.class.getName()).log(Level.FINE, "Closing " + file, e);
+			}
+			if (!file.delete()) {
+				// Still mapped on some platforms
+				Logger.getLogger(ScrollbackFile.class.getName()).log(Level.WARNING, "Could not delete " + file);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.vaadin8.console.ansi;
+
+import java.io.Serializable;
+
+/**
+ * Single-pass tokenizer splitting output with ANSI escape sequences into text
+ * runs with CSS classes.
+ *
+ * SGR sequences ({@code ESC [ ... m}) update the current {@link SGRState},
+ * which is converted to CSS classes with an {@link ANSICodeConverter}. Other
+ * control sequences ({@code ESC [ ... K} and similar) are dropped. An escape
+ * character not starting a control sequence is output as text.
+ *
+ * The tokenizer is stateful: attributes stay in effect between calls, and a
+ * control sequence cut off at the end of the input is completed by the next
+ * call, so output can be fed in arbitrary chunks.
+ *
+ */
+public class ANSITokenizer implements Serializable {
+
+	private static final long serialVersionUID = -2407958227731264013L;
+
+	/**
+	 * Receiver of the tokenized text runs.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called for each text run.
+		 *
+		 * @param text
+		 *            non-empty text
+		 * @param cssClasses
+		 *            space-separated CSS classes or null
+		 */
+		void text(String text, String cssClasses);
+
+	}
+
+	protected static final char ESC = '\033';
+
+	/**
+	 * Longest unfinished control sequence kept for the next call. Longer ones
+	 * are output as text.
+	 */
+	protected static final int MAX_PENDING = 64;
+
+	private static final int NO_SEQUENCE = -1;
+	private static final int INCOMPLETE = -2;
+
+	private final ANSICodeConverter converter;
+	private final SGRState state = new SGRState();
+	private String pending;
+	private String cssClasses;
+	private boolean cssClassesValid = true;
+
+	public ANSITokenizer(final ANSICodeConverter converter) {
+		this.converter = converter;
+	}
+
+	public ANSICodeConverter getConverter() {
+		return converter;
+	}
+
+	/**
+	 * Reset the attributes and drop any unfinished control sequence.
+	 */
+	public void reset() {
+		state.reset();
+		pending = null;
+		cssClasses = null;
+		cssClassesValid = true;
+	}
+
+	/**
+	 * Tokenize the next chunk of input.
+	 *
+	 * @param input
+	 * @param handler
+	 */
+	public void tokenize(final String input, final Handler handler) {
+		final String s = pending != null ? pending + input : input;
+		pending = null;
+		final int length = s.length();
+		int textStart = 0;
+		int i = s.indexOf(ESC);
+		while (i >= 0) {
+			final int end = scanControlSequence(s, i);
+			if (end == INCOMPLETE && length - i <= MAX_PENDING) {
+				pending = s.substring(i);
+				break;
+			}
+			if (end < 0) {
+				i = s.indexOf(ESC, i + 1);
+				continue;
+			}
+			if (i > textStart) {
+				handler.text(s.substring(textStart, i), getCSSClasses());
+			}
+			if (s.charAt(end - 1) == 'm') {
+				state.apply(s.substring(i + 2, end - 1));
+				cssClassesValid = false;
+			}
+			textStart = end;
+			i = s.indexOf(ESC, end);
+		}
+		final int textEnd = pending != null ? length - pending.length() : length;
+		if (textStart < textEnd) {
+			handler.text(s.substring(textStart, textEnd), getCSSClasses());
+		}
+	}
+
+	private String getCSSClasses() {
+		if (!cssClassesValid) {
+			final String sequence = state.toSequence();
+			cssClasses = sequence != null ? converter.convertANSIToCSS(sequence) : null;
+			if (cssClasses != null && (cssClasses = cssClasses.trim()).length() == 0) {
+				cssClasses = null;
+			}
+			cssClassesValid = true;
+		}
+		return cssClasses;
+	}
+
+	/**
+	 * Find the end of a control sequence ({@code ESC [} parameter and
+	 * intermediate bytes, final byte).
+	 *
+	 * @param s
+	 * @param start
+	 *            index of the escape character
+	 * @return index after the final byte, {@link #NO_SEQUENCE} if there is no
+	 *         control sequence at start or {@link #INCOMPLETE} if the input
+	 *         ends before the final byte
+	 */
+	protected static int scanControlSequence(final String s, final int start) {
+		int i = start + 1;
+		if (i >= s.length()) {
+			return INCOMPLETE;
+		}
+		if (s.charAt(i) != '[') {
+			return NO_SEQUENCE;
+		}
+		for (i++; i < s.length(); i++) {
+			final char c = s.charAt(i);
+			if (c >= 0x40 && c <= 0x7e) {
+				return i + 1;
+			}
+			if (c < 0x20 || c > 0x3f) {
+				return NO_SEQUENCE;
+			}
+		}
+		return INCOMPLETE;
+	}
+
+}
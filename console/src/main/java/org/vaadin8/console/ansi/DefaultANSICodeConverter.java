@@ -1,19 +1,26 @@
 package org.vaadin8.console.ansi;
 
+import java.io.Serializable;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
- * Default converter for numeric-only ANSI codes. 
- * 
+ * Default converter for numeric-only ANSI codes.
+ *
+ * Extended colors ({@code 38;5;n}, {@code 48;5;n}, {@code 38;2;r;g;b} and
+ * {@code 48;2;r;g;b}) are mapped to the nearest of the named colors in the
+ * theme. Converted sequences are cached, so the codes are looked up in
+ * {@link #ANSI_CSS} only once per sequence.
+ *
  * @author indvdum
  * 31.05.2011 13:55:47
  *
  */
-public class DefaultANSICodeConverter implements ANSICodeConverter {
-	
+public class DefaultANSICodeConverter implements ANSICodeConverter, Serializable {
+
+	private static final long serialVersionUID = -6011047513658651447L;
+
 	protected static final Map<Integer, String> ANSI_CSS = new HashMap<Integer, String>();
 	static{
 		ANSI_CSS.put(0, "");
@@ -23,16 +30,16 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 		ANSI_CSS.put(4, "term-text-decoration-underline");
 		ANSI_CSS.put(5, "term-text-decoration-blink");
 		ANSI_CSS.put(6, "term-text-decoration-blink");
-		
+
 		ANSI_CSS.put(9, "term-text-decoration-line-through");
-		
+
 		ANSI_CSS.put(22, "term-font-weight-normal");
-		
+
 		ANSI_CSS.put(24, "term-text-decoration-none");
 		ANSI_CSS.put(25, "term-text-decoration-none");
-		
+
 		ANSI_CSS.put(29, "term-text-decoration-none");
-		
+
 		ANSI_CSS.put(30, "term-color-black");
 		ANSI_CSS.put(31, "term-color-red");
 		ANSI_CSS.put(32, "term-color-green");
@@ -41,7 +48,7 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 		ANSI_CSS.put(35, "term-color-purple");
 		ANSI_CSS.put(36, "term-color-teal");
 		ANSI_CSS.put(37, "term-color-silver");
-		
+
 		ANSI_CSS.put(40, "term-background-color-black");
 		ANSI_CSS.put(41, "term-background-color-red");
 		ANSI_CSS.put(42, "term-background-color-green");
@@ -50,50 +57,190 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 		ANSI_CSS.put(45, "term-background-color-purple");
 		ANSI_CSS.put(46, "term-background-color-teal");
 		ANSI_CSS.put(47, "term-background-color-silver");
-		
+
 		ANSI_CSS.put(53, "term-text-decoration-overline");
 		ANSI_CSS.put(55, "term-text-decoration-none");
+
+		ANSI_CSS.put(90, "term-color-gray");
+		ANSI_CSS.put(91, "term-color-red");
+		ANSI_CSS.put(92, "term-color-lime");
+		ANSI_CSS.put(93, "term-color-yellow");
+		ANSI_CSS.put(94, "term-color-blue");
+		ANSI_CSS.put(95, "term-color-fuchsia");
+		ANSI_CSS.put(96, "term-color-aqua");
+		ANSI_CSS.put(97, "term-color-white");
+
+		ANSI_CSS.put(100, "term-background-color-gray");
+		ANSI_CSS.put(101, "term-background-color-red");
+		ANSI_CSS.put(102, "term-background-color-lime");
+		ANSI_CSS.put(103, "term-background-color-yellow");
+		ANSI_CSS.put(104, "term-background-color-blue");
+		ANSI_CSS.put(105, "term-background-color-fuchsia");
+		ANSI_CSS.put(106, "term-background-color-aqua");
+		ANSI_CSS.put(107, "term-background-color-white");
+	}
+
+	/**
+	 * Named colors of the theme and their RGB values.
+	 */
+	private static final String[] COLOR_NAMES = { "white", "silver", "gray", "black", "maroon", "red", "orange", "yellow", "olive", "lime", "green",
+			"aqua", "blue", "navy", "teal", "fuchsia", "purple" };
+	private static final int[] COLOR_RGB = { 0xffffff, 0xc0c0c0, 0x808080, 0x000000, 0x800000, 0xff0000, 0xffa500, 0xffff00, 0x808000, 0x00ff00,
+			0x008000, 0x00ffff, 0x0000ff, 0x000080, 0x008080, 0xff00ff, 0x800080 };
+	private static final String[] COLOR_CSS = new String[COLOR_NAMES.length];
+	private static final String[] BACKGROUND_COLOR_CSS = new String[COLOR_NAMES.length];
+
+	/**
+	 * Nearest named color for each color of the xterm 256 color palette.
+	 */
+	private static final int[] XTERM_256_COLORS = new int[256];
+	private static final int[] XTERM_CUBE_LEVELS = { 0, 95, 135, 175, 215, 255 };
+	static{
+		for (int i = 0; i < COLOR_NAMES.length; i++) {
+			COLOR_CSS[i] = "term-color-" + COLOR_NAMES[i];
+			BACKGROUND_COLOR_CSS[i] = "term-background-color-" + COLOR_NAMES[i];
+		}
+		for (int n = 16; n < 232; n++) {
+			final int c = n - 16;
+			XTERM_256_COLORS[n] = nearestColor(XTERM_CUBE_LEVELS[c / 36], XTERM_CUBE_LEVELS[(c / 6) % 6], XTERM_CUBE_LEVELS[c % 6]);
+		}
+		for (int n = 232; n < 256; n++) {
+			final int level = 8 + 10 * (n - 232);
+			XTERM_256_COLORS[n] = nearestColor(level, level, level);
+		}
 	}
-	
+
+	/**
+	 * Maximum number of converted sequences kept in the cache.
+	 */
+	protected static final int CACHE_SIZE = 256;
+
+	private final Map<String, String> cache = new LinkedHashMap<String, String>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 2904710939047212937L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
 	public DefaultANSICodeConverter(){
 		init();
 	}
-	
+
 	protected void init(){
-		
+
 	}
-	
+
 	@Override
 	public String convertANSIToCSS(String ansiEscapeSequence) {
+		String cssClasses = cache.get(ansiEscapeSequence);
+		if (cssClasses == null) {
+			cssClasses = convert(ansiEscapeSequence);
+			cache.put(ansiEscapeSequence, cssClasses);
+		}
+		return cssClasses;
+	}
+
+	private String convert(final String ansiEscapeSequence) {
+		final int length = ansiEscapeSequence.length();
+		if (length < 3 || ansiEscapeSequence.charAt(0) != '\033' || ansiEscapeSequence.charAt(1) != '['
+				|| ansiEscapeSequence.charAt(length - 1) != 'm')
+			return "";
 		StringBuilder cssClasses = new StringBuilder("");
-		Matcher matcher = Pattern.compile(ANSI_PATTERN).matcher(ansiEscapeSequence);
-		if(!matcher.matches())
-			return cssClasses.toString();
-		String codes[] = matcher.group(2).split(";");
+		final int codes[] = parseCodes(ansiEscapeSequence, 2, length - 1);
 		for(int i = 0; i < codes.length; i++){
-			if(!codes[i].matches("[0-9]+")) // processing only numeric codes
-				continue;
-			int nCode = Integer.valueOf(codes[i]);
-			if(nCode == 38){ // Set xterm-256 text color, nothing to do
-				i+=2;
-				continue;
-			}
-			if(nCode == 48){ // Set xterm-256 background color, nothing to do
-				i+=2;
+			final int nCode = codes[i];
+			if(nCode == 38 || nCode == 48){ // xterm-256 or RGB color
+				i += appendExtendedColor(cssClasses, nCode == 38, codes, i + 1);
 				continue;
 			}
-			String cssClass = getCSSClass(nCode);
-			if(cssClass == null)
+			if(nCode < 0) // processing only numeric codes
 				continue;
-			cssClass = cssClass.trim();
-			if(cssClass.length() > 0)
-				cssClasses.append(cssClass).append(" "); 
+			appendCSSClass(cssClasses, getCSSClass(nCode));
 		}
 		return cssClasses.toString().trim();
 	}
 
 	/**
-	 * Converting one numeric ANSI code to one or many CSS-classes. 
+	 * Parse the ';' separated codes between start and end. Empty codes are 0,
+	 * non-numeric codes are -1.
+	 */
+	private static int[] parseCodes(final String s, final int start, final int end) {
+		int count = 1;
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) == ';')
+				count++;
+		}
+		final int[] codes = new int[count];
+		int n = 0;
+		for (int i = start; i < end; i++) {
+			final char c = s.charAt(i);
+			if (c == ';') {
+				n++;
+			} else if (c < '0' || c > '9' || codes[n] < 0 || codes[n] > 0xffffff) {
+				codes[n] = -1;
+			} else {
+				codes[n] = codes[n] * 10 + (c - '0');
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * Append the class of an extended color whose parameters start at index
+	 * i.
+	 *
+	 * @return number of codes consumed
+	 */
+	private int appendExtendedColor(final StringBuilder cssClasses, final boolean foreground, final int[] codes, final int i) {
+		if (i >= codes.length)
+			return 0;
+		if (codes[i] == 5 && i + 1 < codes.length) {
+			final int n = codes[i + 1];
+			if (n >= 0 && n < 8) {
+				appendCSSClass(cssClasses, getCSSClass((foreground ? 30 : 40) + n));
+			} else if (n >= 8 && n < 16) {
+				appendCSSClass(cssClasses, getCSSClass((foreground ? 90 : 100) + n - 8));
+			} else if (n >= 16 && n < 256) {
+				appendCSSClass(cssClasses, getColorCSSClass(foreground, XTERM_256_COLORS[n]));
+			}
+			return 2;
+		}
+		if (codes[i] == 2 && i + 3 < codes.length) {
+			final int r = Math.min(codes[i + 1], 255), g = Math.min(codes[i + 2], 255), b = Math.min(codes[i + 3], 255);
+			if (r >= 0 && g >= 0 && b >= 0)
+				appendCSSClass(cssClasses, getColorCSSClass(foreground, nearestColor(r, g, b)));
+			return 4;
+		}
+		return 1;
+	}
+
+	private static int nearestColor(final int r, final int g, final int b) {
+		int nearest = 0;
+		int minDistance = Integer.MAX_VALUE;
+		for (int i = 0; i < COLOR_RGB.length; i++) {
+			final int dr = r - (COLOR_RGB[i] >> 16), dg = g - ((COLOR_RGB[i] >> 8) & 0xff), db = b - (COLOR_RGB[i] & 0xff);
+			final int distance = dr * dr + dg * dg + db * db;
+			if (distance < minDistance) {
+				minDistance = distance;
+				nearest = i;
+			}
+		}
+		return nearest;
+	}
+
+	private static void appendCSSClass(final StringBuilder cssClasses, String cssClass) {
+		if(cssClass == null)
+			return;
+		cssClass = cssClass.trim();
+		if(cssClass.length() > 0)
+			cssClasses.append(cssClass).append(" ");
+	}
+
+	/**
+	 * Converting one numeric ANSI code to one or many CSS-classes.
 	 *
 	 * @param ansiCode ANSI code
 	 * @return CSS-class(es).
@@ -102,8 +249,12 @@ public class DefaultANSICodeConverter implements ANSICodeConverter {
 		return ANSI_CSS.get(ansiCode);
 	}
 
+	private static String getColorCSSClass(final boolean foreground, final int color) {
+		return foreground ? COLOR_CSS[color] : BACKGROUND_COLOR_CSS[color];
+	}
+
 	/**
-	 * Converting one string ANSI code to one or many CSS-classes. 
+	 * Converting one string ANSI code to one or many CSS-classes.
 	 *
 	 * @param ansiCode ANSI code
 	 * @return CSS-class(es).
@@ -0,0 +1,196 @@
+package org.vaadin8.console.ansi;
+
+import java.io.Serializable;
+
+/**
+ * Current graphic rendition (SGR) attributes of a text stream.
+ *
+ * Each SGR sequence updates the attributes instead of replacing them, so a
+ * color set once stays in effect until it is changed or reset.
+ *
+ */
+public class SGRState implements Serializable {
+
+	private static final long serialVersionUID = 3617402786340291582L;
+
+	private static final int INTENSITY = 0;
+	private static final int ITALIC = 1;
+	private static final int UNDERLINE = 2;
+	private static final int BLINK = 3;
+	private static final int INVERSE = 4;
+	private static final int LINE_THROUGH = 5;
+	private static final int OVERLINE = 6;
+	private static final int FOREGROUND = 7;
+	private static final int BACKGROUND = 8;
+
+	/**
+	 * Active code for each attribute, null if the attribute has its default
+	 * value. Extended colors keep all their parameters, e.g. "38;5;208".
+	 */
+	private final String[] codes = new String[9];
+
+	/**
+	 * Reset all attributes to default.
+	 */
+	public void reset() {
+		for (int i = 0; i < codes.length; i++) {
+			codes[i] = null;
+		}
+	}
+
+	public boolean isDefault() {
+		for (final String code : codes) {
+			if (code != null) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Apply parameters of an SGR sequence.
+	 *
+	 * @param params
+	 *            the parameters between "ESC [" and "m", e.g. "01;31"
+	 */
+	public void apply(final String params) {
+		final int length = params.length();
+		int start = 0;
+		while (start <= length) {
+			int end = params.indexOf(';', start);
+			if (end < 0) {
+				end = length;
+			}
+			final int code = parseCode(params, start, end);
+			if ((code == 38 || code == 48) && end < length) {
+				end = skipExtendedColor(params, end + 1);
+				codes[code == 38 ? FOREGROUND : BACKGROUND] = params.substring(start, end);
+			} else {
+				applyCode(code);
+			}
+			start = end + 1;
+		}
+	}
+
+	private void applyCode(final int code) {
+		switch (code) {
+		case 0:
+			reset();
+			break;
+		case 1:
+		case 2:
+			codes[INTENSITY] = Integer.toString(code);
+			break;
+		case 22:
+			codes[INTENSITY] = null;
+			break;
+		case 3:
+			codes[ITALIC] = "3";
+			break;
+		case 23:
+			codes[ITALIC] = null;
+			break;
+		case 4:
+			codes[UNDERLINE] = "4";
+			break;
+		case 24:
+			codes[UNDERLINE] = null;
+			break;
+		case 5:
+		case 6:
+			codes[BLINK] = Integer.toString(code);
+			break;
+		case 25:
+			codes[BLINK] = null;
+			break;
+		case 7:
+			codes[INVERSE] = "7";
+			break;
+		case 27:
+			codes[INVERSE] = null;
+			break;
+		case 9:
+			codes[LINE_THROUGH] = "9";
+			break;
+		case 29:
+			codes[LINE_THROUGH] = null;
+			break;
+		case 53:
+			codes[OVERLINE] = "53";
+			break;
+		case 55:
+			codes[OVERLINE] = null;
+			break;
+		case 39:
+			codes[FOREGROUND] = null;
+			break;
+		case 49:
+			codes[BACKGROUND] = null;
+			break;
+		default:
+			if ((code >= 30 && code <= 37) || (code >= 90 && code <= 97)) {
+				codes[FOREGROUND] = Integer.toString(code);
+			} else if ((code >= 40 && code <= 47) || (code >= 100 && code <= 107)) {
+				codes[BACKGROUND] = Integer.toString(code);
+			}
+			// other codes are not supported
+			break;
+		}
+	}
+
+	/**
+	 * Parse one numeric parameter. An empty parameter means 0.
+	 *
+	 * @return the code or -1 if the parameter is not numeric
+	 */
+	private static int parseCode(final String params, final int start, final int end) {
+		int code = 0;
+		for (int i = start; i < end; i++) {
+			final char c = params.charAt(i);
+			if (c < '0' || c > '9' || code > 1000) {
+				return -1;
+			}
+			code = code * 10 + (c - '0');
+		}
+		return code;
+	}
+
+	/**
+	 * Skip the parameters of "38;5;n" or "38;2;r;g;b" after the 38/48.
+	 *
+	 * @return end index of the extended color
+	 */
+	private static int skipExtendedColor(final String params, final int start) {
+		int end = params.indexOf(';', start);
+		if (end < 0) {
+			return params.length();
+		}
+		final int kind = parseCode(params, start, end);
+		final int count = kind == 5 ? 1 : (kind == 2 ? 3 : 0);
+		for (int i = 0; i < count && end < params.length(); i++) {
+			final int next = params.indexOf(';', end + 1);
+			end = next < 0 ? params.length() : next;
+		}
+		return end;
+	}
+
+	/**
+	 * @return an SGR sequence setting all current attributes, or null if all
+	 *         attributes have default values
+	 */
+	public String toSequence() {
+		StringBuilder sb = null;
+		for (final String code : codes) {
+			if (code != null) {
+				if (sb == null) {
+					sb = new StringBuilder("\033[");
+				} else {
+					sb.append(';');
+				}
+				sb.append(code);
+			}
+		}
+		return sb == null ? null : sb.append('m').toString();
+	}
+
+}
@@ -12,27 +12,74 @@ import com.vaadin.shared.communication.ClientRpc;
  */
 public interface ConsoleClientRpc extends ClientRpc {
 
-	public void setGreeting(String greeting);
-
-	public void setPs(String ps);
-
-	public void setWrap(boolean wrap);
-
 	public void setRows(int rows);
 
 	public void setCols(int cols);
 
-	public void print(String text);
-
-	public void printWithClass(String text, String className);
-
-	public void println(String text);
-
-	public void printlnWithClass(String text, String className);
-
-	public void append(String text);
-
-	public void appendWithClass(String text, String className);
+	/**
+	 * Run operation for {@link #write(String, int[], String[])}: print the run
+	 * text, flushing an active prompt first.
+	 */
+	public static final int WRITE_PRINT = 0;
+
+	/**
+	 * Run operation for {@link #write(String, int[], String[])}: append the run
+	 * text to the last printed line.
+	 */
+	public static final int WRITE_APPEND = 1;
+
+	/**
+	 * Run operation for {@link #write(String, int[], String[])}: print new
+	 * line only if the buffer does not end with one. The run has no text.
+	 */
+	public static final int WRITE_NEWLINE_IF_NEEDED = 2;
+
+	/**
+	 * Write a batch of output.
+	 * 
+	 * @param text
+	 *            text of all runs concatenated
+	 * @param runs
+	 *            (operation, end offset in text, index in classNames or -1)
+	 *            triples
+	 * @param classNames
+	 *            CSS class names referenced by the runs
+	 */
+	public void write(String text, int[] runs, String[] classNames);
+
+	/**
+	 * Set the absolute numbers of the lines in the server-side scrollback.
+	 * 
+	 * @param firstLine
+	 *            first line available
+	 * @param lastLine
+	 *            last line, i.e. the one currently written
+	 */
+	public void setLines(long firstLine, long lastLine);
+
+	/**
+	 * Insert older lines at the top of the buffer, requested with
+	 * {@link ConsoleServerRpc#requestLines(long, int)}.
+	 * 
+	 * @param firstLine
+	 *            absolute number of the first line in text, the requested line
+	 *            if there are no older lines
+	 * @param text
+	 * @param runs
+	 * @param classNames
+	 * @see #write(String, int[], String[])
+	 */
+	public void prependLines(long firstLine, String text, int[] runs, String[] classNames);
+
+	/**
+	 * Request an acknowledgement with
+	 * {@link ConsoleServerRpc#rendered(long)} once the output before this call
+	 * has been rendered.
+	 * 
+	 * @param sequence
+	 *            sequence number of the output
+	 */
+	public void sync(long sequence);
 
 	public void prompt();
 
@@ -48,22 +95,12 @@ public interface ConsoleClientRpc extends ClientRpc {
 
 	public void reset();
 
-	public void newLine();
-
-	public void newLineIfNotEndsWithNewLine();
-
 	public void scrollToEnd();
 
 	public void focusInput();
 
 	public void bell();
 
-	public void setMaxBufferSize(int bufferSize);
-
 	public void clearHistory();
 
-	public void setPrintPromptOnInput(boolean printPromptOnInput);
-
-	public void setScrollLock(boolean scrollLock);
-
 }
\ No newline at end of file
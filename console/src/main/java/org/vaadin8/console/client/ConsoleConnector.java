@@ -5,6 +5,7 @@ import org.vaadin8.console.Console;
 import com.google.gwt.core.client.GWT;
 import com.google.gwt.event.dom.client.FocusEvent;
 import com.google.gwt.event.dom.client.FocusHandler;
+import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.Widget;
 import com.vaadin.client.annotations.OnStateChange;
 import com.vaadin.client.communication.RpcProxy;
@@ -31,27 +32,27 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 	// is automatically created here
 	ConsoleServerRpc rpc = RpcProxy.create(ConsoleServerRpc.class, this);
 
+	/** Delay after the last size change before the size is sent. */
+	private static final int RESIZE_DELAY_MS = 200;
+
+	private final Timer resizeTimer = new Timer() {
+
+		@Override
+		public void run() {
+			sendResize();
+		}
+	};
+	private boolean resizePending;
+	private boolean paintableSizeChanged;
+	private int sentCols = -1;
+	private int sentRows = -1;
+
 	public ConsoleConnector() {
 
 		// To receive RPC events from server, we register ClientRpc
 		// implementation
 		registerRpc(ConsoleClientRpc.class, new ConsoleClientRpc() {
 
-			@Override
-			public void setGreeting(String greeting) {
-				getWidget().getConfig().setGreeting(greeting);
-			}
-
-			@Override
-			public void setPs(String ps) {
-				getWidget().setPs(ps);
-			}
-
-			@Override
-			public void setWrap(boolean wrap) {
-				getWidget().getConfig().setWrap(wrap);
-			}
-
 			@Override
 			public void setRows(int rows) {
 				getWidget().getConfig().setRows(rows);
@@ -65,33 +66,23 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 			}
 
 			@Override
-			public void print(String text) {
-				getWidget().print(text);
+			public void write(String text, int[] runs, String[] classNames) {
+				getWidget().write(text, runs, classNames);
 			}
 
 			@Override
-			public void printWithClass(String text, String className) {
-				getWidget().printWithClass(text, className);
+			public void setLines(long firstLine, long lastLine) {
+				getWidget().setLines(firstLine, lastLine);
 			}
 
 			@Override
-			public void println(String text) {
-				getWidget().println(text);
+			public void prependLines(long firstLine, String text, int[] runs, String[] classNames) {
+				getWidget().prependLines(firstLine, text, runs, classNames);
 			}
 
 			@Override
-			public void printlnWithClass(String text, String className) {
-				getWidget().printlnWithClass(text, className);
-			}
-
-			@Override
-			public void append(String text) {
-				getWidget().append(text);
-			}
-
-			@Override
-			public void appendWithClass(String text, String className) {
-				getWidget().appendWithClass(text, className);
+			public void sync(long sequence) {
+				getWidget().sync(sequence);
 			}
 
 			@Override
@@ -129,16 +120,6 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 				getWidget().reset();
 			}
 
-			@Override
-			public void newLine() {
-				getWidget().newLine();
-			}
-
-			@Override
-			public void newLineIfNotEndsWithNewLine() {
-				getWidget().newLineIfNotEndsWithNewLine();
-			}
-
 			@Override
 			public void scrollToEnd() {
 				getWidget().scrollToEnd();
@@ -154,61 +135,100 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 				getWidget().bell();
 			}
 
-			@Override
-			public void setMaxBufferSize(int bufferSize) {
-				getWidget().getConfig().setMaxBufferSize(bufferSize);
-				getWidget().setMaxBufferSize(bufferSize);
-			}
-
 			@Override
 			public void clearHistory() {
 				getWidget().clearCommandHistory();
 			}
 
-			@Override
-			public void setPrintPromptOnInput(boolean printPromptOnInput) {
-				getWidget().getConfig().setPrintPromptOnInput(printPromptOnInput);
-			}
-
-			@Override
-			public void setScrollLock(boolean scrollLock) {
-				getWidget().getConfig().setScrollLock(scrollLock);
-			}
-
 		});
 
 		getWidget().setHandler(new TextConsoleHandler() {
 
 			@Override
 			public void terminalInput(TextConsole term, String input) {
+				// Commands see the current size
+				sendResize();
 				rpc.input(input);
 			}
 
 			@Override
 			public void suggest(String input) {
+				sendResize();
 				rpc.suggest(input);
 			}
 
 			@Override
 			public void paintableSizeChanged() {
 				notifyPaintableSizeChange();
-				rpc.setHeight(getWidget().getHeight());
-				rpc.setWidth(getWidget().getWidth());
+				paintableSizeChanged = true;
+				scheduleResize();
+			}
+
+			@Override
+			public void linesRequested(long beforeLine, int count) {
+				rpc.requestLines(beforeLine, count);
+			}
+
+			@Override
+			public void outputRendered(long sequence) {
+				rpc.rendered(sequence);
+			}
+
+			@Override
+			public void cancel() {
+				rpc.cancel();
 			}
 
 			@Override
 			public void rowsChanged(int rows) {
-				rpc.setRows(rows);
+				scheduleResize();
 			}
 
 			@Override
 			public void colsChanged(int cols) {
-				rpc.setCols(cols);
+				scheduleResize();
 			}
 		});
 
 	}
 
+	private void scheduleResize() {
+		resizePending = true;
+		resizeTimer.schedule(RESIZE_DELAY_MS);
+	}
+
+	/**
+	 * Send the pending size change, if any, in one call.
+	 */
+	private void sendResize() {
+		if (!resizePending) {
+			return;
+		}
+		resizeTimer.cancel();
+		resizePending = false;
+		final ConsoleWidget widget = getWidget();
+		final int cols = widget.getCols();
+		final int rows = widget.getRows();
+		if (!paintableSizeChanged && cols == sentCols && rows == sentRows) {
+			// Changed back within the delay
+			return;
+		}
+		sentCols = cols;
+		sentRows = rows;
+		if (paintableSizeChanged) {
+			paintableSizeChanged = false;
+			rpc.resized(cols, rows, widget.getWidth(), widget.getHeight());
+		} else {
+			rpc.resized(cols, rows, null, null);
+		}
+	}
+
+	@Override
+	public void onUnregister() {
+		resizeTimer.cancel();
+		super.onUnregister();
+	}
+
 	// We must implement createWidget() to create correct type of widget
 	@Override
 	protected Widget createWidget() {
@@ -233,6 +253,31 @@ public class ConsoleConnector extends AbstractComponentConnector implements Focu
 	public void onStateChanged(StateChangeEvent stateChangeEvent) {
 		// GWT.log("onStateChanged() width = " + getState().width);
 		super.onStateChanged(stateChangeEvent);
+
+		// Only changed properties are sent, all of them initially
+		final ConsoleState state = getState();
+		final ConsoleWidget widget = getWidget();
+		final TextConsoleConfig config = widget.getConfig();
+		config.setGreeting(state.greeting);
+		config.setPrintPromptOnInput(state.printPromptOnInput);
+		config.setScrollLock(state.scrollLock);
+		if (stateChangeEvent.hasPropertyChanged("ps")) {
+			config.setPs(state.ps);
+			widget.setPs(state.ps);
+		}
+		if (stateChangeEvent.hasPropertyChanged("wrap")) {
+			widget.setWrap(state.wrap);
+		}
+		if (stateChangeEvent.hasPropertyChanged("maxBufferSize")) {
+			config.setMaxBufferSize(state.maxBufferSize);
+			widget.setMaxBufferSize(state.maxBufferSize);
+		}
+		if (stateChangeEvent.hasPropertyChanged("virtualScroll")) {
+			widget.setVirtualScroll(state.virtualScroll);
+		}
+		if (stateChangeEvent.hasPropertyChanged("busy")) {
+			widget.setBusy(state.busy);
+		}
 	}
 
 	@Override
@@ -11,16 +11,50 @@ import com.vaadin.shared.communication.ServerRpc;
  */
 public interface ConsoleServerRpc extends ServerRpc {
 
-	public void setHeight(String height);
-
-	public void setWidth(String width);
-
-	public void setCols(int cols);
-
-	public void setRows(int rows);
+	/**
+	 * Report the size of the console after it was resized. Sent once after a
+	 * burst of changes, e.g. while a window is dragged.
+	 * 
+	 * @param cols
+	 *            columns that fit the width
+	 * @param rows
+	 *            rows that fit the height
+	 * @param width
+	 *            width calculated from the columns, or null if the width was
+	 *            set by the server or the layout
+	 * @param height
+	 *            height calculated from the rows, or null if the height was
+	 *            set by the server or the layout
+	 */
+	public void resized(int cols, int rows, String width, String height);
 
 	public void input(String input);
 
 	public void suggest(String input);
 
+	/**
+	 * Request older lines of the scrollback, answered with
+	 * {@link ConsoleClientRpc#prependLines(long, String, int[], String[])}.
+	 * 
+	 * @param beforeLine
+	 *            absolute number of the first line in the client buffer
+	 * @param count
+	 *            number of lines
+	 */
+	public void requestLines(long beforeLine, int count);
+
+	/**
+	 * Acknowledge that the output sent before
+	 * {@link ConsoleClientRpc#sync(long)} has been rendered.
+	 * 
+	 * @param sequence
+	 *            the sequence number of the sync
+	 */
+	public void rendered(long sequence);
+
+	/**
+	 * Cancel the running command, on Ctrl-C while the console is busy.
+	 */
+	public void cancel();
+
 }
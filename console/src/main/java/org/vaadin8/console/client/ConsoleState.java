@@ -11,4 +11,16 @@ public class ConsoleState extends com.vaadin.shared.AbstractComponentState {
 	// State can have both public variable and bean properties
 	public String text = "Console";
 
+	// Configuration, sent only when changed
+	public int maxBufferSize = 0;
+	public boolean wrap = true;
+	public boolean printPromptOnInput = true;
+	public boolean scrollLock = false;
+	public boolean virtualScroll = false;
+	public String greeting = "Console ready.";
+	public String ps = "}> ";
+
+	// True while a command runs, with the prompt hidden
+	public boolean busy = false;
+
 }
\ No newline at end of file
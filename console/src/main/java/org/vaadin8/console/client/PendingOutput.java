@@ -0,0 +1,161 @@
+package org.vaadin8.console.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Output received while a {@link TextConsole} is not visible.
+ *
+ * Write batches are merged into one text and run list in the format of
+ * {@link ConsoleClientRpc#write(String, int[], String[])}. Only the last lines
+ * are kept, as the console would drop the older ones from its buffer anyway.
+ *
+ */
+class PendingOutput {
+
+	private static final int RUN_SIZE = 3;
+
+	private final StringBuilder text = new StringBuilder();
+	private final List<String> classNames = new ArrayList<String>();
+	private int[] runs = new int[RUN_SIZE * 16];
+	private int runsLength;
+	private int newLines;
+	private boolean collapsed;
+	private boolean printed;
+	private long firstLine = -1;
+	private long lastLine = -1;
+
+	public boolean isEmpty() {
+		return runsLength == 0 && lastLine < 0;
+	}
+
+	/**
+	 * Add a write batch.
+	 *
+	 * @see ConsoleClientRpc#write(String, int[], String[])
+	 */
+	public void write(final String batchText, final int[] batchRuns, final String[] batchClassNames) {
+		final int offset = text.length();
+		text.append(batchText);
+		for (int i = 0; i < batchText.length(); i++) {
+			if (batchText.charAt(i) == '\n') {
+				newLines++;
+			}
+		}
+		if (runsLength + batchRuns.length > runs.length) {
+			final int[] grown = new int[Math.max(runs.length * 2, runsLength + batchRuns.length)];
+			System.arraycopy(runs, 0, grown, 0, runsLength);
+			runs = grown;
+		}
+		for (int i = 0; i + 2 < batchRuns.length; i += RUN_SIZE) {
+			runs[runsLength++] = batchRuns[i];
+			runs[runsLength++] = batchRuns[i + 1] + offset;
+			runs[runsLength++] = batchRuns[i + 2] >= 0 ? indexOfClass(batchClassNames[batchRuns[i + 2]]) : -1;
+		}
+	}
+
+	/**
+	 * Keep the latest line numbers.
+	 *
+	 * @see ConsoleClientRpc#setLines(long, long)
+	 */
+	public void setLines(final long firstLine, final long lastLine) {
+		this.firstLine = firstLine;
+		this.lastLine = lastLine;
+	}
+
+	/**
+	 * @return number of new lines in the text
+	 */
+	public int getNewLines() {
+		return newLines;
+	}
+
+	/**
+	 * Drop the oldest lines so that the text has at most maxLines new lines.
+	 */
+	public void collapse(final int maxLines) {
+		if (newLines <= maxLines) {
+			return;
+		}
+		int cut = 0;
+		for (int n = newLines - maxLines; n > 0; n--) {
+			cut = text.indexOf("\n", cut) + 1;
+		}
+		int start = 0;
+		int kept = 0;
+		for (int i = 0; i < runsLength; i += RUN_SIZE) {
+			final int op = runs[i];
+			final int end = runs[i + 1];
+			if (end <= cut) {
+				printed |= op == ConsoleClientRpc.WRITE_PRINT;
+			} else {
+				if (start < cut && op == ConsoleClientRpc.WRITE_PRINT) {
+					// Printed before the cut, the rest is appended
+					printed = true;
+					runs[kept] = ConsoleClientRpc.WRITE_APPEND;
+				} else {
+					runs[kept] = op;
+				}
+				runs[kept + 1] = end - cut;
+				runs[kept + 2] = runs[i + 2];
+				kept += RUN_SIZE;
+			}
+			start = end;
+		}
+		runsLength = kept;
+		text.delete(0, cut);
+		newLines = maxLines;
+		collapsed = true;
+	}
+
+	/**
+	 * @return true if older lines were dropped, i.e. the lines in the
+	 *         console buffer are replaced
+	 */
+	public boolean isCollapsed() {
+		return collapsed;
+	}
+
+	/**
+	 * @return true if a dropped run was printed, which hides the prompt
+	 */
+	public boolean isPrinted() {
+		return printed;
+	}
+
+	public boolean hasLines() {
+		return lastLine >= 0;
+	}
+
+	public long getFirstLine() {
+		return firstLine;
+	}
+
+	public long getLastLine() {
+		return lastLine;
+	}
+
+	public String getText() {
+		return text.toString();
+	}
+
+	public int[] getRuns() {
+		final int[] res = new int[runsLength];
+		System.arraycopy(runs, 0, res, 0, runsLength);
+		return res;
+	}
+
+	public String[] getClassNames() {
+		return classNames.toArray(new String[classNames.size()]);
+	}
+
+	private int indexOfClass(final String className) {
+		int i = classNames.indexOf(className);
+		if (i < 0) {
+			i = classNames.size();
+			classNames.add(className);
+		}
+		return i;
+	}
+}
@@ -1,8 +1,14 @@
 package org.vaadin8.console.client;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationCallback;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
 import com.google.gwt.dom.client.DivElement;
 import com.google.gwt.dom.client.Document;
 import com.google.gwt.dom.client.Element;
@@ -19,6 +25,8 @@ import com.google.gwt.event.dom.client.ClickHandler;
 import com.google.gwt.event.dom.client.KeyCodes;
 import com.google.gwt.event.dom.client.KeyDownEvent;
 import com.google.gwt.event.dom.client.KeyDownHandler;
+import com.google.gwt.event.dom.client.ScrollEvent;
+import com.google.gwt.event.dom.client.ScrollHandler;
 import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.ui.FocusWidget;
@@ -42,6 +50,8 @@ public class TextConsole extends FocusWidget {
 	public static final char CTRL_CARRIAGE_RETURN = 'M';
 	public static final char CTRL_ESCAPE = '[';
 	public static final char CTRL_DELETE = '?';
+	// Only while busy, to keep copy working otherwise
+	public static final char CTRL_CANCEL = 'C';
 
 	private static final char[] CTRL = { CTRL_BELL, CTRL_BACKSPACE, CTRL_TAB, CTRL_LINE_FEED, CTRL_FORM_FEED, CTRL_CARRIAGE_RETURN, CTRL_ESCAPE, CTRL_DELETE };
 
@@ -56,6 +66,11 @@ public class TextConsole extends FocusWidget {
 
 	private static final String DEFAULT_TABS = "    ";
 	private static final int BIG_NUMBER = 100000;
+	private static final int PAGE_LINES = 200;
+	private static final String SOFT_BREAK = "sb";
+	private static final String LINE_LENGTH = "lineLength";
+	private static final String NO_WRAP = "nw";
+	private static final int MAX_QUEUED_OUTPUT = 500;
 	private final DivElement term;
 	private TextConsoleConfig config;
 	private TextConsoleHandler handler;
@@ -68,6 +83,7 @@ public class TextConsole extends FocusWidget {
 	private HandlerRegistration clickHandler;
 	private HandlerRegistration keyHandler;
 	private HandlerRegistration focusHandler;
+	private HandlerRegistration scrollHandler;
 	private int fontW = -1;
 	private int fontH = -1;
 	private int scrollbarW = -1;
@@ -83,6 +99,41 @@ public class TextConsole extends FocusWidget {
 	private String cleanPs;
 	private int paddingW;
 
+	/* Absolute line numbers for paging the server-side scrollback */
+	private long firstLine;
+	private int lineCount;
+
+	/* Number of rows in the buffer, i.e. of line breaks including wraps */
+	private int bufferRows;
+
+	/* Number of ended lines in the buffer */
+	private int bufferBreaks;
+
+	/*
+	 * Number of lines in the buffer by length, to count the wrapped rows
+	 * again after a reflow without visiting the lines
+	 */
+	private final Map<Integer, Integer> lineLengths = new HashMap<Integer, Integer>();
+
+	/* Columns the row counts are computed for, -1 if not wrapped */
+	private int wrapCols;
+	private long scrollbackFirstLine;
+	private long requestedLine = -1;
+	private int historyRows;
+
+	private VirtualBuffer virtualBuffer;
+
+	/* Output applied once per animation frame */
+	private final List<ScheduledCommand> queuedOutput = new ArrayList<ScheduledCommand>();
+	private boolean frameRequested;
+	private Node fragment;
+
+	/* Output received while not visible, rendered when shown */
+	private boolean hidden;
+	private boolean busy;
+	private PendingOutput pendingOutput;
+	private JavaScriptObject visibilityObserver;
+
 	public TextConsole() {
 
 		// Main element
@@ -156,6 +207,15 @@ public class TextConsole extends FocusWidget {
 
 				public void onKeyDown(final KeyDownEvent event) {
 
+					if (busy) {
+						// No input until the command completes
+						if (event.getNativeEvent().getCtrlKey() && event.getNativeKeyCode() == CTRL_CANCEL) {
+							event.preventDefault();
+							handleControlChar(CTRL_CANCEL);
+						}
+						return;
+					}
+
 					// (re-)show the prompt
 					setPromtActive(true);
 
@@ -181,6 +241,15 @@ public class TextConsole extends FocusWidget {
 				}
 			}, KeyDownEvent.getType());
 		}
+
+		if (scrollHandler == null) {
+			scrollHandler = addDomHandler(new ScrollHandler() {
+
+				public void onScroll(final ScrollEvent event) {
+					checkScrollPosition();
+				}
+			}, ScrollEvent.getType());
+		}
 	}
 
 	protected int getInputLenght() {
@@ -217,6 +286,11 @@ public class TextConsole extends FocusWidget {
 		case TextConsole.CTRL_TAB:
 			tab();
 			break;
+		case TextConsole.CTRL_CANCEL:
+			if (handler != null) {
+				handler.cancel();
+			}
+			break;
 
 		default:
 			bell();
@@ -265,6 +339,7 @@ public class TextConsole extends FocusWidget {
 	}
 
 	protected void carriageReturn() {
+		flushOutput();
 		if (config.isPrintPromptOnInput()) {
 			setPromtActive(false);
 			// Append newline first if not there yet
@@ -297,7 +372,10 @@ public class TextConsole extends FocusWidget {
 	}
 
 	private boolean bufferIsEmpty() {
-		return !buffer.hasChildNodes();
+		if (virtualBuffer != null) {
+			return virtualBuffer.isEmpty();
+		}
+		return getLastLine() == null;
 	}
 
 	private void setPromtActive(final boolean active) {
@@ -321,7 +399,6 @@ public class TextConsole extends FocusWidget {
 
 		updateFontDimensions();
 
-		scrollbarW = getScrollbarWidth();
 		final String padStr = term.getStyle().getPadding();
 		if (padStr != null && padStr.endsWith("px")) {
 			padding = Integer.parseInt(padStr.substring(0, padStr.length() - 2));
@@ -342,28 +419,10 @@ public class TextConsole extends FocusWidget {
 	}
 
 	private void updateFontDimensions() {
-
-		// Test element for font size
-		DivElement test = Document.get().createDivElement();
-		test.setAttribute("style", "position: absolute;");
-		test.setInnerHTML("X");
-		term.appendChild(test);
-
-		fontW = test.getClientWidth();
-		fontH = test.getClientHeight();
-		if (fontW <= 0 || fontW > 100) {
-			fontW = test.getOffsetWidth();
-		}
-		if (fontH <= 0 || fontH > 100) {
-			fontH = test.getOffsetHeight();
-		}
-		if (fontW <= 0 || fontW > 100) {
-			fontW = 1;
-		}
-		if (fontH <= 0 || fontH > 100) {
-			fontH = 1;
-		}
-		term.removeChild(test);
+		final TextConsoleMetrics metrics = TextConsoleMetrics.get(term);
+		fontW = metrics.getFontWidth();
+		fontH = metrics.getFontHeight();
+		scrollbarW = metrics.getScrollbarWidth();
 	}
 
 	// Debug instrumentation. TODO: Remove.
@@ -376,22 +435,110 @@ public class TextConsole extends FocusWidget {
 	}
 
 	private boolean bufferEndsWithNewLine() {
-		Node last = buffer != null ? buffer.getLastChild() : null;
-		while (last != null && last.getLastChild() != null)
-			last = last.getLastChild();
-		// GWT.log("last node: " + (last != null ? last.getNodeName() :
-		// "<null>"));
-		return last != null && "br".equals(last.getNodeName().toLowerCase());
+		if (virtualBuffer != null) {
+			return virtualBuffer.endsWithNewLine();
+		}
+		final Element last = getLastLine();
+		return last != null && isLineEnded(last);
+	}
+
+	/**
+	 * @return the last line element of the buffer, or null if empty
+	 */
+	private Element getLastLine() {
+		final Node last = getOutputParent().getLastChild();
+		return last != null ? Element.as(last) : null;
+	}
+
+	/**
+	 * @return the last line element if not ended, otherwise a new line
+	 *         element
+	 */
+	private Element getOpenLine() {
+		Element line = getLastLine();
+		if (line == null || isLineEnded(line)) {
+			line = Document.get().createDivElement();
+			getOutputParent().appendChild(line);
+		}
+		return line;
+	}
+
+	/**
+	 * @return true if the line ends with a break, i.e. nothing can be appended
+	 *         to it
+	 */
+	private static boolean isLineEnded(final Element line) {
+		final Node last = line.getLastChild();
+		return last != null && "br".equalsIgnoreCase(last.getNodeName());
+	}
+
+	/**
+	 * @return true if the line ends with a break that is not soft, i.e. it is
+	 *         a line of the scrollback
+	 */
+	private static boolean isScrollbackLine(final Element line) {
+		return isLineEnded(line) && !SOFT_BREAK.equals(Element.as(line.getLastChild()).getClassName());
+	}
+
+	/**
+	 * @return number of rows of a line element at the current columns, i.e.
+	 *         its break and wraps
+	 */
+	private int getLineRows(final Element line) {
+		return (isLineEnded(line) ? 1 : 0) + getWrapRows(line.getPropertyInt(LINE_LENGTH));
+	}
+
+	/**
+	 * Count a line of the given length, or stop counting it.
+	 * 
+	 * @param count
+	 *            1 to add the line, -1 to remove it
+	 */
+	private void countLineLength(final int length, final int count) {
+		if (length == 0) {
+			return;
+		}
+		final Integer n = lineLengths.get(length);
+		final int lines = (n != null ? n : 0) + count;
+		if (lines > 0) {
+			lineLengths.put(length, lines);
+		} else {
+			lineLengths.remove(length);
+		}
+	}
+
+	/**
+	 * Count the rows in the buffer again from the line lengths, e.g. after
+	 * the columns have changed.
+	 */
+	private void countBufferRows() {
+		bufferRows = bufferBreaks;
+		for (final Map.Entry<Integer, Integer> e : lineLengths.entrySet()) {
+			bufferRows += e.getValue() * getWrapRows(e.getKey());
+		}
 	}
 
 	private Node createTextNode(final String text) {
 		return Document.get().createTextNode(text);
 	}
 
+	/**
+	 * Create a break ending a logical line.
+	 */
 	private Node createBr() {
+		lineCount++;
 		return Document.get().createBRElement();
 	}
 
+	/**
+	 * Create a break for a blank row that is not a line of the scrollback.
+	 */
+	private Node createSoftBr() {
+		final Element br = Document.get().createBRElement();
+		br.setClassName(SOFT_BREAK);
+		return br;
+	}
+
 	public void focusPrompt() {
 		focusPrompt(-1);
 	}
@@ -420,36 +567,10 @@ public class TextConsole extends FocusWidget {
 																								}
 																								}-*/;
 
-	private native int getScrollbarWidth()/*-{
-
-											var i = $doc.createElement('p');
-											i.style.width = '100%';
-											i.style.height = '200px';
-											var o = $doc.createElement('div');
-											o.style.position = 'absolute';
-											o.style.top = '0px';
-											o.style.left = '0px';
-											o.style.visibility = 'hidden';
-											o.style.width = '200px';
-											o.style.height = '150px';
-											o.style.overflow = 'hidden';
-											o.appendChild(i);
-											$doc.body.appendChild(o);
-											var w1 = i.offsetWidth;
-											var h1 = i.offsetHeight;
-											o.style.overflow = 'scroll';
-											var w2 = i.offsetWidth;
-											var h2 = i.offsetHeight;
-											if (w1 == w2) w2 = o.clientWidth;
-											if (h1 == h2) h2 = o.clientWidth;
-											$doc.body.removeChild(o);
-											return w1-w2;
-											}-*/;
-
 	public void newLine() {
 		// GWT.log("newline");
 		beforeChangeTerminal();
-		buffer.appendChild(createBr());
+		appendBreak(false);
 		checkBufferLimit();
 		reducePrompt(1);
 	}
@@ -458,7 +579,7 @@ public class TextConsole extends FocusWidget {
 		if (!bufferIsEmpty() && !bufferEndsWithNewLine()) {
 			// GWT.log("newline");
 			beforeChangeTerminal();
-			buffer.appendChild(createBr());
+			appendBreak(false);
 			checkBufferLimit();
 			reducePrompt(1);
 		}
@@ -471,6 +592,7 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public void prompt(final String inputText) {
+		flushOutput();
 		setPromtActive(true);
 		scrollToEnd();
 		ps.setInnerHTML(cleanPs);
@@ -478,7 +600,8 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public void focusInput() {
-		if (isFocused())
+		flushOutput();
+		if (isFocused() && !busy)
 			setPromtActive(true);
 		scrollToEnd();
 		ps.setInnerHTML(cleanPs);
@@ -487,6 +610,7 @@ public class TextConsole extends FocusWidget {
 	private boolean isCheckedScrollState = false;
 
 	public void scrollToEnd() {
+		flushOutput();
 		if (config.isScrollLock()) {
 			if (config.isScrolledToEnd())
 				term.setScrollTop(BIG_NUMBER);
@@ -510,160 +634,381 @@ public class TextConsole extends FocusWidget {
 		beforeChangeTerminal();
 		if (string == null)
 			string = "";
-		if (isPromptActive()) {
-			setPromtActive(false);
-			if (!bufferIsEmpty() && !bufferEndsWithNewLine()) {
-				newLine();
-				reducePrompt(-1);
-			}
-			string = getCurrentPromptContent() + string;
-		}
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
-
-		// Continue to the last text node if available
-		final Node last = getLastFirstLevelTextNode();
-		int linesAdded = 0;
-		if (last != null) {
-			// GWT.log("print append to old node: '" + last.getNodeValue() +
-			// "'");
-			str = last.getNodeValue() + str;
-			buffer.removeChild(last);
-			linesAdded--;
-		}
-
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(buffer, line, doWrap ? cols : -1);
-			buffer.appendChild(createBr());
-			s = e + 1;
-			e = str.indexOf('\n', s);
-		}
+		string = flushPrompt(string);
+		reducePrompt(appendOutput(string, null));
+	}
 
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(buffer, str.substring(s), doWrap ? cols : -1);
+	public void printWithClass(String string, String className) {
+		if (className == null) {
+			print(string);
+			return;
 		}
+		beforeChangeTerminal();
+		if (string == null)
+			string = "";
+		string = flushPrompt(string);
+		reducePrompt(appendOutput(string, className));
+	}
 
-		reducePrompt(linesAdded);
+	public void append(String string) {
+		// GWT.log("append = " + string);
+		beforeChangeTerminal();
+		if (string == null)
+			string = "";
+		reducePrompt(appendOutput(string, null));
 	}
 
-	public void printWithClass(String string, String className) {
+	public void appendWithClass(String string, String className) {
 		if (className == null) {
-			print(string);
+			append(string);
 			return;
 		}
+		// GWT.log("append = " + string + " classname = " + className);
 		beforeChangeTerminal();
 		if (string == null)
 			string = "";
+		reducePrompt(appendOutput(string, className));
+	}
+
+	/**
+	 * Hide the active prompt before printing.
+	 * 
+	 * @return the string to print prefixed with the prompt content
+	 */
+	private String flushPrompt(final String string) {
 		if (isPromptActive()) {
 			setPromtActive(false);
 			if (!bufferIsEmpty() && !bufferEndsWithNewLine()) {
 				newLine();
 				reducePrompt(-1);
 			}
-			string = getCurrentPromptContent() + string;
+			return getCurrentPromptContent() + string;
 		}
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
-		int linesAdded = 0;
+		return string;
+	}
 
-		Element classedChild = Document.get().createElement("span");
-		classedChild.addClassName(className);
-		buffer.appendChild(classedChild);
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(classedChild, line, doWrap ? cols : -1);
-			classedChild.appendChild(createBr());
+	/**
+	 * Append output text to the buffer.
+	 * 
+	 * @param className
+	 *            CSS class name or null
+	 * @return number of lines added
+	 */
+	private int appendOutput(final String string, final String className) {
+		if (virtualBuffer == null) {
+			final int linesAdded = appendText(string, className);
+			checkBufferLimit();
+			return linesAdded;
+		}
+		int rowsAdded = 0;
+		int s = 0;
+		for (int e = string.indexOf('\n'); e >= 0; e = string.indexOf('\n', s)) {
+			rowsAdded += virtualBuffer.append(string.substring(s, e), className);
+			rowsAdded += virtualBuffer.newLine(false);
+			lineCount++;
 			s = e + 1;
-			e = str.indexOf('\n', s);
 		}
+		rowsAdded += virtualBuffer.append(string.substring(s), className);
+		checkBufferLimit();
+		return rowsAdded;
+	}
 
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(classedChild, str.substring(s), doWrap ? cols : -1);
+	/**
+	 * Append a line break.
+	 * 
+	 * @param soft
+	 *            true for a blank row that is not a line of the scrollback
+	 */
+	private void appendBreak(final boolean soft) {
+		if (virtualBuffer != null) {
+			virtualBuffer.newLine(soft);
+			if (!soft) {
+				lineCount++;
+			}
+		} else {
+			final Element line = getOpenLine();
+			line.appendChild(soft ? createSoftBr() : createBr());
+			bufferBreaks++;
+			bufferRows++;
 		}
-
-		reducePrompt(linesAdded);
 	}
 
-	public void append(String string) {
-		// GWT.log("append = " + string);
-		beforeChangeTerminal();
-		if (string == null)
-			string = "";
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
+	/**
+	 * @return parent for new buffer nodes: the fragment while applying queued
+	 *         output, the buffer otherwise
+	 */
+	private Node getOutputParent() {
+		return fragment != null ? fragment : buffer;
+	}
 
-		// Continue to the last text node if available
-		final Node last = getLastFirstLevelTextNode();
-		int linesAdded = 0;
-		if (last != null) {
-			// GWT.log("print append to old node: '" + last.getNodeValue() +
-			// "'");
-			str = last.getNodeValue() + str;
-			buffer.removeChild(last);
-			linesAdded--;
+	private static native Node createDocumentFragment()
+	/*-{
+		return $doc.createDocumentFragment();
+	}-*/;
+	/**
+	 * Get the element for text with the given class. The last span of the
+	 * parent is reused if it has the same class, so consecutive output with
+	 * the same style does not add new elements.
+	 */
+	private Element getClassedChild(final Node parent, final String className) {
+		final Node last = parent.getLastChild();
+		if (last != null && last.getNodeType() == Node.ELEMENT_NODE) {
+			final Element lastElement = Element.as(last);
+			if ("span".equalsIgnoreCase(lastElement.getTagName()) && className.equals(lastElement.getClassName())) {
+				return lastElement;
+			}
 		}
+		final Element classedChild = Document.get().createElement("span");
+		classedChild.setClassName(className);
+		parent.appendChild(classedChild);
+		return classedChild;
+	}
+
+	/**
+	 * Append text to the buffer, one line element per line.
+	 * 
+	 * @param className
+	 *            CSS class name or null
+	 * @return number of lines added
+	 */
+	private int appendText(final String string, final String className) {
+		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
+		final String str = string.replaceAll("\t", tabs);
 
 		// Split by the newlines anyway
+		int linesAdded = 0;
 		int s = 0, e = str.indexOf('\n');
 		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(buffer, line, doWrap ? cols : -1);
-			buffer.appendChild(createBr());
+			linesAdded += appendToLine(str.substring(s, e), className);
+			appendBreak(false);
 			s = e + 1;
 			e = str.indexOf('\n', s);
 		}
 
 		// Print the remaining string
 		if (s < str.length()) {
-			linesAdded += appendLine(buffer, str.substring(s), doWrap ? cols : -1);
+			linesAdded += appendToLine(str.substring(s), className);
 		}
 
-		reducePrompt(linesAdded);
+		return linesAdded;
 	}
 
-	public void appendWithClass(String string, String className) {
-		if (className == null) {
-			append(string);
+	/**
+	 * Append text without new lines to the open line. The line is wrapped by
+	 * the browser, only its row count is updated.
+	 * 
+	 * @return number of lines added
+	 */
+	private int appendToLine(final String str, final String className) {
+		final Element line = getOpenLine();
+		final int length = line.getPropertyInt(LINE_LENGTH);
+		if (str.length() == 0) {
+			return length == 0 ? 1 : 0;
+		}
+		appendToTextNode(className != null ? getClassedChild(line, className) : line, str);
+		line.setPropertyInt(LINE_LENGTH, length + str.length());
+		countLineLength(length, -1);
+		countLineLength(length + str.length(), 1);
+		final int wraps = getWrapRows(length + str.length()) - getWrapRows(length);
+		bufferRows += wraps;
+		return wraps + (length == 0 ? 1 : 0);
+	}
+
+	/**
+	 * Queue a batch of output, applied on the next animation frame.
+	 *
+	 * @see ConsoleClientRpc#write(String, int[], String[])
+	 */
+	public void write(final String text, final int[] runs, final String[] classNames) {
+		if (hidden) {
+			getPendingOutput().write(text, runs, classNames);
+			if (pendingOutput.getNewLines() > 2 * getMaxLines()) {
+				pendingOutput.collapse(getMaxLines());
+			}
 			return;
 		}
-		// GWT.log("append = " + string + " classname = " + className);
+		queueOutput(new ScheduledCommand() {
+
+			public void execute() {
+				applyWrite(text, runs, classNames);
+			}
+		});
+	}
+
+	private void queueOutput(final ScheduledCommand command) {
+		queuedOutput.add(command);
+		if (queuedOutput.size() > MAX_QUEUED_OUTPUT) {
+			// No frames, e.g. in a background tab
+			flushOutput();
+		} else if (!frameRequested) {
+			frameRequested = true;
+			AnimationScheduler.get().requestAnimationFrame(new AnimationCallback() {
+
+				public void execute(final double timestamp) {
+					frameRequested = false;
+					applyQueuedOutput();
+				}
+			}, term);
+		}
+	}
+
+	/**
+	 * Apply the queued output now. New nodes are collected in a document
+	 * fragment and added to the buffer at once, with the scroll state read
+	 * before and the view scrolled to the end after if it was there. Output
+	 * received while hidden is kept until shown.
+	 */
+	public void flushOutput() {
+		if (pendingOutput != null && !hidden) {
+			// Older than the output that requires the flush
+			queuedOutput.add(takePendingOutput());
+		}
+		applyQueuedOutput();
+	}
+
+	private void applyQueuedOutput() {
+		if (queuedOutput.isEmpty()) {
+			return;
+		}
+		isCheckedScrollState = false;
 		beforeChangeTerminal();
-		if (string == null)
-			string = "";
-		final boolean doWrap = config.isWrap();
-		// GWT.log("print original: '" + string + "' (" + doWrap + ")");
-		String str = string.replaceAll("\t", tabs);
-		int linesAdded = 0;
+		if (virtualBuffer == null) {
+			fragment = createDocumentFragment();
+			// Continue the last line in the fragment
+			final Node last = buffer.getLastChild();
+			if (last != null) {
+				fragment.appendChild(last);
+			}
+		}
+		final List<ScheduledCommand> commands = new ArrayList<ScheduledCommand>(queuedOutput);
+		queuedOutput.clear();
+		for (final ScheduledCommand command : commands) {
+			command.execute();
+		}
+		if (fragment != null) {
+			buffer.appendChild(fragment);
+			fragment = null;
+		}
+		if (config.isScrolledToEnd()) {
+			scrollToEnd();
+		}
+	}
 
-		Element classedChild = Document.get().createElement("span");
-		classedChild.addClassName(className);
-		buffer.appendChild(classedChild);
-		// Split by the newlines anyway
-		int s = 0, e = str.indexOf('\n');
-		while (e >= s) {
-			final String line = str.substring(s, e);
-			linesAdded += appendLine(classedChild, line, doWrap ? cols : -1);
-			classedChild.appendChild(createBr());
-			s = e + 1;
-			e = str.indexOf('\n', s);
+	private PendingOutput getPendingOutput() {
+		if (pendingOutput == null) {
+			pendingOutput = new PendingOutput();
 		}
+		return pendingOutput;
+	}
 
-		// Print the remaining string
-		if (s < str.length()) {
-			linesAdded += appendLine(classedChild, str.substring(s), doWrap ? cols : -1);
+	/**
+	 * @return number of lines kept in the buffer when it is full
+	 */
+	private int getMaxLines() {
+		return maxBufferSize + Math.max(rows, 1);
+	}
+
+	/**
+	 * Take the output received while not visible, as one command.
+	 */
+	private ScheduledCommand takePendingOutput() {
+		final PendingOutput pending = pendingOutput;
+		pendingOutput = null;
+		pending.collapse(getMaxLines());
+		return new ScheduledCommand() {
+
+			public void execute() {
+				if (pending.isCollapsed()) {
+					// All lines in the buffer were pushed out
+					clearLines();
+					if (pending.isPrinted() && isPromptActive()) {
+						setPromtActive(false);
+					}
+				}
+				applyWrite(pending.getText(), pending.getRuns(), pending.getClassNames());
+				if (pending.hasLines()) {
+					scrollbackFirstLine = pending.getFirstLine();
+					firstLine = pending.getLastLine() - lineCount;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Pause or resume rendering of output. Output received while hidden is
+	 * kept collapsed to the lines the buffer can show, and rendered once when
+	 * shown again.
+	 */
+	protected void setHidden(final boolean hidden) {
+		if (hidden == this.hidden) {
+			return;
+		}
+		this.hidden = hidden;
+		if (!hidden && pendingOutput != null) {
+			queueOutput(takePendingOutput());
+		}
+	}
+
+	public boolean isHidden() {
+		return hidden;
+	}
+
+	/**
+	 * Hide the prompt and ignore input, except Ctrl-C, while a command runs.
+	 * The prompt is shown again by the server when the command completes.
+	 */
+	public void setBusy(final boolean busy) {
+		this.busy = busy;
+		if (busy) {
+			setPromtActive(false);
+		}
+	}
+
+	public boolean isBusy() {
+		return busy;
+	}
+
+	/**
+	 * Observe whether the console is visible, e.g. not in a hidden tab or
+	 * scrolled out of view.
+	 * 
+	 * @return the observer or null if not supported by the browser
+	 */
+	private native JavaScriptObject observeVisibility(Element e)/*-{
+		if (!$wnd.IntersectionObserver) {
+			return null;
 		}
+		var self = this;
+		var observer = new $wnd.IntersectionObserver($entry(function(entries) {
+			var entry = entries[entries.length - 1];
+			self.@org.vaadin8.console.client.TextConsole::setHidden(Z)(!entry.isIntersecting);
+		}));
+		observer.observe(e);
+		return observer;
+	}-*/;
 
-		reducePrompt(linesAdded);
+	private static native void disconnect(JavaScriptObject observer)/*-{
+		observer.disconnect();
+	}-*/;
+
+	private void applyWrite(final String text, final int[] runs, final String[] classNames) {
+		int start = 0;
+		for (int i = 0; i + 2 < runs.length; i += 3) {
+			final int end = runs[i + 1];
+			final String className = runs[i + 2] >= 0 ? classNames[runs[i + 2]] : null;
+			switch (runs[i]) {
+			case ConsoleClientRpc.WRITE_PRINT:
+				printWithClass(text.substring(start, end), className);
+				break;
+			case ConsoleClientRpc.WRITE_APPEND:
+				appendWithClass(text.substring(start, end), className);
+				break;
+			case ConsoleClientRpc.WRITE_NEWLINE_IF_NEEDED:
+				newLineIfNotEndsWithNewLine();
+				break;
+			}
+			start = end;
+		}
 	}
 
 	private String getCurrentPromptContent() {
@@ -688,60 +1033,156 @@ public class TextConsole extends FocusWidget {
 		promptWrap.getStyle().setHeight(newHeight, Unit.PX);
 	}
 
+
 	/**
-	 * Split long text based on length.
-	 * 
-	 * @param parent
-	 * @param doWrap
-	 * @param str
-	 * @return
+	 * Append to the last text node of the parent in place, or add a text
+	 * node.
 	 */
-	private int appendLine(final Node parent, String str, final int maxLine) {
-		int linesAdded = 0;
-		final boolean doWrap = maxLine > 0;
-		if (!doWrap) {
-			parent.appendChild(createTextNode(str));
-			// GWT.log("append: '" + str + "'");
-			linesAdded++;
+	private void appendToTextNode(final Node parent, final String str) {
+		final Node last = parent.getLastChild();
+		if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+			appendData(last, str);
 		} else {
-			while (str.length() > maxLine) {
-				final String piece = str.substring(0, maxLine);
-				parent.appendChild(createTextNode(piece));
-				parent.appendChild(createBr());
-				linesAdded++;
-				// GWT.log("append: '" + piece + "'");
-				str = str.substring(maxLine);
-			}
 			parent.appendChild(createTextNode(str));
-			// GWT.log("append rest: '" + str + "'");
-			linesAdded++;
 		}
+	}
 
-		// make sore we don't exceed the maximum buffer size
-		checkBufferLimit();
+	private static native void appendData(Node text, String data)
+	/*-{
+		text.appendData(data);
+	}-*/;
+
+	private void checkBufferLimit() {
+
+		// Buffer means only offscreen lines, and the history paged in
+		final int maxb = maxBufferSize + (rows - promptRows) + historyRows;
+		int removed = 0;
+		if (virtualBuffer != null) {
+			removed = virtualBuffer.trim(maxb);
+		} else {
+			final Element last = getLastLine();
+			while (bufferRows > maxb) {
+				final Node parent = buffer.hasChildNodes() || fragment == null ? buffer : fragment;
+				final Node first = parent.getFirstChild();
+				if (first == null || first == last) {
+					break;
+				}
+				final Element line = Element.as(first);
+				bufferRows -= getLineRows(line);
+				if (isLineEnded(line)) {
+					bufferBreaks--;
+				}
+				countLineLength(line.getPropertyInt(LINE_LENGTH), -1);
+				if (isScrollbackLine(line)) {
+					removed++;
+				}
+				parent.removeChild(line);
+			}
+		}
+		lineCount -= removed;
+		firstLine += removed;
 
-		return linesAdded;
 	}
 
-	private void checkBufferLimit() {
+	/**
+	 * Set the absolute numbers of the lines in the server-side scrollback.
+	 * 
+	 * @see ConsoleClientRpc#setLines(long, long)
+	 */
+	public void setLines(final long scrollbackFirstLine, final long lastLine) {
+		if (hidden) {
+			getPendingOutput().setLines(scrollbackFirstLine, lastLine);
+			return;
+		}
+		queueOutput(new ScheduledCommand() {
 
-		// Buffer means only offscreen lines
-		final int maxb = maxBufferSize + (rows - promptRows);
-		while (getBufferSize() > maxb && buffer.hasChildNodes()) {
-			buffer.removeChild(buffer.getFirstChild());
+			public void execute() {
+				TextConsole.this.scrollbackFirstLine = scrollbackFirstLine;
+				firstLine = lastLine - lineCount;
+			}
+		});
+	}
+
+	/**
+	 * Acknowledge the output received so far once it is rendered. Output
+	 * received while hidden is acknowledged at once, as it is kept collapsed.
+	 * 
+	 * @see ConsoleClientRpc#sync(long)
+	 */
+	public void sync(final long sequence) {
+		if (hidden) {
+			handler.outputRendered(sequence);
+			return;
 		}
+		queueOutput(new ScheduledCommand() {
 
+			public void execute() {
+				handler.outputRendered(sequence);
+			}
+		});
 	}
 
-	private Node getLastFirstLevelTextNode() {
-		if (buffer == null) {
-			return null;
+	/**
+	 * Insert a page of older lines at the top of the buffer, keeping the
+	 * scroll position.
+	 * 
+	 * @see ConsoleClientRpc#prependLines(long, String, int[], String[])
+	 */
+	public void prependLines(final long first, final String text, final int[] runs, final String[] classNames) {
+		flushOutput();
+		final long requested = requestedLine;
+		requestedLine = -1;
+		if (requested != firstLine) {
+			// Buffer changed since the request
+			return;
 		}
-		final Node l = buffer.getLastChild();
-		if (l != null && l.getNodeType() == Node.TEXT_NODE) {
-			return l;
+		if (first >= firstLine) {
+			scrollbackFirstLine = firstLine;
+			return;
+		}
+		if (virtualBuffer != null) {
+			final int oldRows = virtualBuffer.getRows();
+			lineCount += virtualBuffer.prepend(text, runs, classNames);
+			firstLine = first;
+			final int addedRows = virtualBuffer.getRows() - oldRows;
+			historyRows += addedRows;
+			term.setScrollTop(term.getScrollTop() + addedRows * fontH);
+			return;
+		}
+		final int oldRows = bufferRows;
+		fragment = createDocumentFragment();
+		int start = 0;
+		for (int i = 0; i + 2 < runs.length; i += 3) {
+			final int end = runs[i + 1];
+			appendText(text.substring(start, end), runs[i + 2] >= 0 ? classNames[runs[i + 2]] : null);
+			start = end;
+		}
+		buffer.insertBefore(fragment, buffer.getFirstChild());
+		fragment = null;
+		firstLine = first;
+		final int addedRows = bufferRows - oldRows;
+		historyRows += addedRows;
+		term.setScrollTop(term.getScrollTop() + addedRows * fontH);
+	}
+
+	/**
+	 * Request older lines when scrolled near the top, drop them again when
+	 * scrolled back to the end.
+	 */
+	private void checkScrollPosition() {
+		if (virtualBuffer != null) {
+			virtualBuffer.scheduleRender();
+		}
+		final int top = term.getScrollTop();
+		if (top < rows * fontH) {
+			if (handler != null && requestedLine < 0 && firstLine > scrollbackFirstLine) {
+				requestedLine = firstLine;
+				handler.linesRequested(firstLine, Math.max(PAGE_LINES, rows));
+			}
+		} else if (historyRows > 0 && top >= term.getScrollHeight() - term.getClientHeight() - fontH) {
+			historyRows = 0;
+			checkBufferLimit();
 		}
-		return null;
 	}
 
 	public void println(final String string) {
@@ -792,8 +1233,8 @@ public class TextConsole extends FocusWidget {
 		final int w = term.getClientWidth();
 		cols = (w - 2 * paddingW) / fontW;
 		config.setCols(cols);
-		buffer.getStyle().setWidth((cols * fontW), Unit.PX);
 		prompt.getStyle().setWidth((cols * fontW), Unit.PX);
+		reflow();
 //		 GWT.log("calculateColsFromWidth: font=" + fontW + "x" + fontH
 //		 + ";scrollbar=" + scrollbarW + ";cols=" + cols + ";rows="
 //		 + rows + ";size=" + getWidth() + "x" + getHeight());
@@ -805,8 +1246,8 @@ public class TextConsole extends FocusWidget {
 	protected void calculateWidthFromCols() {
 		final int w = cols * fontW;
 		super.setWidth((w + scrollbarW) + "px");
-		buffer.getStyle().setWidth(w, Unit.PX);
 		prompt.getStyle().setWidth(w, Unit.PX);
+		reflow();
 
 //		 GWT.log("calculateWidthFromCols: font=" + fontW + "x" + fontH
 //		 + ";scrollbar=" + scrollbarW + ";cols=" + cols + ";rows="
@@ -881,8 +1322,85 @@ public class TextConsole extends FocusWidget {
 		prompt();
 	}
 
+	/**
+	 * @return number of rows in the buffer, counted without measuring
+	 */
 	public int getBufferSize() {
-		return (buffer.getClientHeight() / fontH);
+		if (virtualBuffer != null) {
+			return virtualBuffer.getRows();
+		}
+		return bufferRows;
+	}
+
+	public boolean isVirtualScroll() {
+		return virtualBuffer != null;
+	}
+
+	/**
+	 * Switch between rendering all lines of the buffer and rendering only the
+	 * visible rows. The buffer is cleared.
+	 * 
+	 * @param virtualScroll
+	 */
+	public void setVirtualScroll(final boolean virtualScroll) {
+		if (virtualScroll == isVirtualScroll()) {
+			return;
+		}
+		clearBuffer();
+		if (virtualScroll) {
+			virtualBuffer = new VirtualBuffer(term, promptWrap, tabs);
+			buffer.getStyle().setDisplay(Display.NONE);
+			updateVirtualBuffer();
+		} else {
+			virtualBuffer.remove();
+			virtualBuffer = null;
+			buffer.getStyle().clearDisplay();
+		}
+	}
+
+	public void setWrap(final boolean wrap) {
+		config.setWrap(wrap);
+		reflow();
+	}
+
+	/**
+	 * Update the buffer to the current columns and wrap setting. Lines are
+	 * wrapped by the browser, so no line is touched here. The row count used
+	 * to limit the buffer is computed from the number of lines of each
+	 * length.
+	 */
+	private void reflow() {
+		buffer.getStyle().setProperty("width", cols + "ch");
+		updateVirtualBuffer();
+		final int newWrapCols = config.isWrap() && cols > 0 ? cols : -1;
+		if (newWrapCols == wrapCols) {
+			return;
+		}
+		wrapCols = newWrapCols;
+		if (wrapCols > 0) {
+			buffer.removeClassName(NO_WRAP);
+		} else {
+			buffer.addClassName(NO_WRAP);
+		}
+		if (virtualBuffer == null) {
+			countBufferRows();
+		}
+	}
+
+	/**
+	 * @return number of rows a line of the given length is wrapped to, after
+	 *         its first row
+	 */
+	private int getWrapRows(final int length) {
+		return wrapCols > 0 && length > wrapCols ? (length - 1) / wrapCols : 0;
+	}
+
+	private void updateVirtualBuffer() {
+		if (virtualBuffer != null) {
+			virtualBuffer.setFontHeight(fontH);
+			virtualBuffer.setWidth(cols * fontW);
+			virtualBuffer.setCols(config.isWrap() ? cols : -1);
+		}
 	}
 
 	public int getMaxBufferSize() {
@@ -890,20 +1408,42 @@ public class TextConsole extends FocusWidget {
 	}
 
 	public void setMaxBufferSize(final int maxBuffer) {
+		flushOutput();
 		maxBufferSize = maxBuffer > 0 ? maxBuffer : 0;
 		checkBufferLimit();
 	}
 
 	public void clearBuffer() {
+		flushOutput();
+		clearLines();
+	}
+
+	private void clearLines() {
 		// Remove all children.
 		while (buffer.hasChildNodes()) {
 			buffer.removeChild(buffer.getFirstChild());
 		}
+		while (fragment != null && fragment.hasChildNodes()) {
+			fragment.removeChild(fragment.getFirstChild());
+		}
+		if (virtualBuffer != null) {
+			virtualBuffer.clear();
+		}
+		bufferRows = 0;
+		bufferBreaks = 0;
+		lineLengths.clear();
+		lineCount = 0;
+		historyRows = 0;
+		requestedLine = -1;
 	}
 
 	public void formFeed() {
+		flushOutput();
+		// Blank rows, not lines of the scrollback
 		for (int i = 0; i < promptRows; i++) {
-			newLine();
+			beforeChangeTerminal();
+			appendBreak(true);
+			reducePrompt(1);
 		}
 		setPromptHeight(getRows());
 		scrollToEnd();
@@ -950,6 +1490,10 @@ public class TextConsole extends FocusWidget {
 	protected void onUnload() {
 		super.onUnload();
 
+		if (visibilityObserver != null) {
+			disconnect(visibilityObserver);
+			visibilityObserver = null;
+		}
 		if (clickHandler != null) {
 			clickHandler.removeHandler();
 			clickHandler = null;
@@ -962,11 +1506,18 @@ public class TextConsole extends FocusWidget {
 			keyHandler.removeHandler();
 			keyHandler = null;
 		}
+		if (scrollHandler != null) {
+			scrollHandler.removeHandler();
+			scrollHandler = null;
+		}
 	}
 
 	@Override
 	protected void onLoad() {
 		super.onLoad();
 		init();
+		if (visibilityObserver == null) {
+			visibilityObserver = observeVisibility(term);
+		}
 	}
 }
@@ -12,4 +12,10 @@ public interface TextConsoleHandler {
 
 	public void paintableSizeChanged();
 
+	public void linesRequested(long beforeLine, int count);
+
+	public void outputRendered(long sequence);
+
+	public void cancel();
+
 }
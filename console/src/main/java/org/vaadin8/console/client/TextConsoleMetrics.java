@@ -0,0 +1,156 @@
+package org.vaadin8.console.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gwt.dom.client.DivElement;
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+
+/**
+ * Font and scrollbar dimensions of a {@link TextConsole}.
+ *
+ * Measuring forces a synchronous layout, so the results are shared by all
+ * consoles with the same font and theme. The cache key is read from the
+ * computed style, which changes when the theme or the font does.
+ *
+ */
+public class TextConsoleMetrics {
+
+	private static final String APP_CLASS_NAME = "v-app";
+	private static final int MAX_FONT_SIZE = 100;
+	private static final Map<String, TextConsoleMetrics> cache = new HashMap<String, TextConsoleMetrics>();
+	private static final TextConsoleMetrics UNKNOWN = new TextConsoleMetrics(1, 1, 0);
+
+	private final int fontWidth;
+	private final int fontHeight;
+	private final int scrollbarWidth;
+
+	private TextConsoleMetrics(final int fontWidth, final int fontHeight, final int scrollbarWidth) {
+		this.fontWidth = fontWidth;
+		this.fontHeight = fontHeight;
+		this.scrollbarWidth = scrollbarWidth;
+	}
+
+	public int getFontWidth() {
+		return fontWidth;
+	}
+
+	public int getFontHeight() {
+		return fontHeight;
+	}
+
+	public int getScrollbarWidth() {
+		return scrollbarWidth;
+	}
+
+	/**
+	 * Get the dimensions for the font of a console element, measuring them if
+	 * not known yet. Dimensions of an element that is not rendered are not
+	 * cached.
+	 *
+	 * @param term
+	 *            console element
+	 */
+	public static TextConsoleMetrics get(final Element term) {
+		final String key = getKey(term);
+		if (key == null) {
+			return UNKNOWN;
+		}
+		TextConsoleMetrics metrics = cache.get(key);
+		if (metrics == null) {
+			metrics = measure(term);
+			if (metrics == null) {
+				return UNKNOWN;
+			}
+			cache.put(key, metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * Forget all measured dimensions, e.g. after style sheets were replaced
+	 * without changing the theme name.
+	 */
+	public static void clear() {
+		cache.clear();
+	}
+
+	private static String getKey(final Element term) {
+		final String font = getComputedFont(term);
+		if (font == null) {
+			return null;
+		}
+		String theme = "";
+		for (Element e = term.getParentElement(); e != null; e = e.getParentElement()) {
+			if (e.hasClassName(APP_CLASS_NAME)) {
+				theme = e.getClassName();
+				break;
+			}
+		}
+		return theme + "|" + font;
+	}
+
+	/**
+	 * @return null if the element has no computed style, e.g. when detached
+	 */
+	private static native String getComputedFont(Element e)/*-{
+		var s = $wnd.getComputedStyle ? $wnd.getComputedStyle(e, null) : e.currentStyle;
+		if (!s || !s.fontFamily) {
+			return null;
+		}
+		return s.fontStyle + ' ' + s.fontWeight + ' ' + s.fontSize + '/' + s.lineHeight + ' ' + s.fontFamily;
+	}-*/;
+
+	/**
+	 * @return null if the element is not rendered, e.g. in a hidden tab
+	 */
+	private static TextConsoleMetrics measure(final Element term) {
+		// Test element for font size
+		final DivElement test = Document.get().createDivElement();
+		test.setAttribute("style", "position: absolute;");
+		test.setInnerHTML("X");
+		term.appendChild(test);
+
+		int fontW = test.getClientWidth();
+		int fontH = test.getClientHeight();
+		if (fontW <= 0 || fontW > MAX_FONT_SIZE) {
+			fontW = test.getOffsetWidth();
+		}
+		if (fontH <= 0 || fontH > MAX_FONT_SIZE) {
+			fontH = test.getOffsetHeight();
+		}
+		term.removeChild(test);
+		if (fontW <= 0 || fontW > MAX_FONT_SIZE || fontH <= 0 || fontH > MAX_FONT_SIZE) {
+			return null;
+		}
+		return new TextConsoleMetrics(fontW, fontH, measureScrollbarWidth());
+	}
+
+	private static native int measureScrollbarWidth()/*-{
+
+		var i = $doc.createElement('p');
+		i.style.width = '100%';
+		i.style.height = '200px';
+		var o = $doc.createElement('div');
+		o.style.position = 'absolute';
+		o.style.top = '0px';
+		o.style.left = '0px';
+		o.style.visibility = 'hidden';
+		o.style.width = '200px';
+		o.style.height = '150px';
+		o.style.overflow = 'hidden';
+		o.appendChild(i);
+		$doc.body.appendChild(o);
+		var w1 = i.offsetWidth;
+		var h1 = i.offsetHeight;
+		o.style.overflow = 'scroll';
+		var w2 = i.offsetWidth;
+		var h2 = i.offsetHeight;
+		if (w1 == w2) w2 = o.clientWidth;
+		if (h1 == h2) h2 = o.clientWidth;
+		$doc.body.removeChild(o);
+		return w1-w2;
+	}-*/;
+
+}
@@ -0,0 +1,372 @@
+package org.vaadin8.console.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.core.client.Scheduler.ScheduledCommand;
+import com.google.gwt.dom.client.Document;
+import com.google.gwt.dom.client.Element;
+import com.google.gwt.dom.client.Style.Overflow;
+import com.google.gwt.dom.client.Style.Position;
+import com.google.gwt.dom.client.Style.Unit;
+import com.google.gwt.safehtml.shared.SafeHtmlUtils;
+
+/**
+ * Virtualized buffer of a {@link TextConsole}.
+ *
+ * Lines are kept as text and style runs, and only the rows in the viewport
+ * plus an overscan are rendered. A spacer element keeps the scroll height of
+ * all rows. Long lines are wrapped when rendered.
+ *
+ */
+public class VirtualBuffer {
+
+	private static final int OVERSCAN_ROWS = 20;
+
+	private final Element scroller;
+	private final Element spacer;
+	private final Element view;
+	private final String tabs;
+	private final List<Line> lines = new ArrayList<Line>();
+	private int head;
+	private int cols = -1;
+	private int fontH = 1;
+	private boolean dirty;
+	private boolean layoutStale;
+	private boolean renderScheduled;
+	private int renderedFrom = -1;
+	private int renderedTo = -1;
+
+	/**
+	 * @param scroller
+	 *            scrolling element
+	 * @param before
+	 *            child of the scroller to insert the buffer before
+	 * @param tabs
+	 *            replacement for tab characters
+	 */
+	public VirtualBuffer(final Element scroller, final Element before, final String tabs) {
+		this.scroller = scroller;
+		this.tabs = tabs;
+		spacer = Document.get().createDivElement();
+		spacer.getStyle().setPosition(Position.RELATIVE);
+		spacer.getStyle().setOverflow(Overflow.HIDDEN);
+		view = Document.get().createElement("pre");
+		view.addClassName("b");
+		view.getStyle().setPosition(Position.ABSOLUTE);
+		view.getStyle().setLeft(0, Unit.PX);
+		spacer.appendChild(view);
+		scroller.insertBefore(spacer, before);
+		lines.add(new Line());
+		updateHeight();
+	}
+
+	/**
+	 * Remove the buffer elements.
+	 */
+	public void remove() {
+		spacer.removeFromParent();
+	}
+
+	/**
+	 * Append text without new lines to the last line.
+	 *
+	 * @return number of rows added
+	 */
+	public int append(final String text, final String className) {
+		if (text.length() == 0) {
+			return 0;
+		}
+		layout();
+		final Line last = getLast();
+		final int oldRows = last.rows;
+		last.append(text.replaceAll("\t", tabs), className);
+		last.rows = last.countRows(cols);
+		changed();
+		return last.rows - oldRows;
+	}
+
+	/**
+	 * End the last line.
+	 *
+	 * @param soft
+	 *            true for a blank row that is not a line of the
+	 *            scrollback
+	 * @return number of rows added
+	 */
+	public int newLine(final boolean soft) {
+		layout();
+		final Line last = getLast();
+		last.softBreak = soft;
+		final Line line = new Line();
+		line.top = last.top + last.rows;
+		lines.add(line);
+		changed();
+		return 1;
+	}
+
+	public boolean isEmpty() {
+		return lines.size() - head == 1 && getLast().text.length() == 0;
+	}
+
+	public boolean endsWithNewLine() {
+		return lines.size() - head > 1 && getLast().text.length() == 0;
+	}
+
+	/**
+	 * @return number of rows of all lines
+	 */
+	public int getRows() {
+		layout();
+		final Line last = getLast();
+		return last.top + last.rows - lines.get(head).top;
+	}
+
+	/**
+	 * Remove the oldest lines to keep at most maxRows rows.
+	 *
+	 * @return number of scrollback lines removed
+	 */
+	public int trim(final int maxRows) {
+		int removed = 0;
+		while (getRows() > maxRows && lines.size() - head > 1) {
+			if (!lines.get(head).softBreak) {
+				removed++;
+			}
+			lines.set(head++, null);
+		}
+		if (head > 64 && head > lines.size() / 2) {
+			lines.subList(0, head).clear();
+			head = 0;
+		}
+		if (removed > 0) {
+			changed();
+		}
+		return removed;
+	}
+
+	public void clear() {
+		lines.clear();
+		head = 0;
+		lines.add(new Line());
+		changed();
+	}
+
+	/**
+	 * Insert lines before the first line.
+	 *
+	 * @param text
+	 *            lines, each ending with a new line
+	 * @return number of lines inserted
+	 * @see ConsoleClientRpc#write(String, int[], String[])
+	 */
+	public int prepend(final String text, final int[] runs, final String[] classNames) {
+		final List<Line> page = new ArrayList<Line>();
+		Line line = new Line();
+		int start = 0;
+		for (int i = 0; i + 2 < runs.length; i += 3) {
+			final int end = runs[i + 1];
+			final String className = runs[i + 2] >= 0 ? classNames[runs[i + 2]] : null;
+			int s = start;
+			for (int e = text.indexOf('\n', s); e >= 0 && e < end; e = text.indexOf('\n', s)) {
+				line.append(text.substring(s, e).replaceAll("\t", tabs), className);
+				page.add(line);
+				line = new Line();
+				s = e + 1;
+			}
+			line.append(text.substring(s, end).replaceAll("\t", tabs), className);
+			start = end;
+		}
+		layout();
+		int top = lines.get(head).top;
+		for (int i = page.size() - 1; i >= 0; i--) {
+			final Line l = page.get(i);
+			l.rows = l.countRows(cols);
+			top -= l.rows;
+			l.top = top;
+		}
+		lines.subList(0, head).clear();
+		head = 0;
+		lines.addAll(0, page);
+		changed();
+		return page.size();
+	}
+
+	/**
+	 * Set the number of columns to wrap lines at. The lines are re-wrapped
+	 * when next needed, once after a series of resizes.
+	 *
+	 * @param cols
+	 *            columns or -1 not to wrap
+	 */
+	public void setCols(final int cols) {
+		if (cols == this.cols) {
+			return;
+		}
+		this.cols = cols;
+		layoutStale = true;
+		dirty = true;
+		scheduleRender();
+	}
+
+	/**
+	 * Count the rows of the lines again after the columns have changed. The
+	 * rows of all lines are needed, as they give the height of the spacer and
+	 * the line at a scroll position, but only from the stored text lengths.
+	 */
+	private void layout() {
+		if (!layoutStale) {
+			return;
+		}
+		layoutStale = false;
+		int top = lines.get(head).top;
+		for (int i = head; i < lines.size(); i++) {
+			final Line line = lines.get(i);
+			line.top = top;
+			line.rows = line.countRows(cols);
+			top += line.rows;
+		}
+		updateHeight();
+	}
+
+	public void setFontHeight(final int fontH) {
+		if (fontH > 0 && fontH != this.fontH) {
+			this.fontH = fontH;
+			changed();
+		}
+	}
+
+	public void setWidth(final int width) {
+		spacer.getStyle().setWidth(width, Unit.PX);
+	}
+
+	private Line getLast() {
+		return lines.get(lines.size() - 1);
+	}
+
+	private void changed() {
+		dirty = true;
+		updateHeight();
+		scheduleRender();
+	}
+
+	private void updateHeight() {
+		spacer.getStyle().setHeight(getRows() * fontH, Unit.PX);
+	}
+
+	/**
+	 * Render the visible rows after the current event, e.g. when scrolled.
+	 */
+	public void scheduleRender() {
+		if (!renderScheduled) {
+			renderScheduled = true;
+			Scheduler.get().scheduleFinally(new ScheduledCommand() {
+
+				public void execute() {
+					render();
+				}
+			});
+		}
+	}
+
+	private void render() {
+		renderScheduled = false;
+		layout();
+		final int headTop = lines.get(head).top;
+		final int firstRow = headTop + Math.max(0, scroller.getScrollTop() / fontH - OVERSCAN_ROWS);
+		final int lastRow = firstRow + scroller.getClientHeight() / fontH + 2 * OVERSCAN_ROWS;
+		final int from = findLine(firstRow);
+		final int to = findLine(lastRow) + 1;
+		if (!dirty && from == renderedFrom && to == renderedTo) {
+			return;
+		}
+		final StringBuilder html = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			if (i > from) {
+				html.append('\n');
+			}
+			lines.get(i).render(html, cols);
+		}
+		view.setInnerHTML(html.toString());
+		view.getStyle().setTop((lines.get(from).top - headTop) * fontH, Unit.PX);
+		renderedFrom = from;
+		renderedTo = to;
+		dirty = false;
+	}
+
+	/**
+	 * @return index of the line showing the given absolute row
+	 */
+	private int findLine(final int row) {
+		int low = head;
+		int high = lines.size() - 1;
+		while (low < high) {
+			final int mid = (low + high + 1) >>> 1;
+			if (lines.get(mid).top <= row) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * A logical line: text, style runs and its position in rows.
+	 */
+	private static class Line {
+
+		final StringBuilder text = new StringBuilder();
+		final List<Integer> runStarts = new ArrayList<Integer>();
+		final List<String> runClasses = new ArrayList<String>();
+		boolean softBreak;
+		int rows = 1;
+		int top;
+
+		void append(final String s, final String className) {
+			if (s.length() == 0) {
+				return;
+			}
+			final int n = runClasses.size();
+			if (n == 0 || !equals(runClasses.get(n - 1), className)) {
+				runStarts.add(text.length());
+				runClasses.add(className);
+			}
+			text.append(s);
+		}
+
+		int countRows(final int cols) {
+			return cols > 0 ? Math.max(1, (text.length() + cols - 1) / cols) : 1;
+		}
+
+		void render(final StringBuilder html, final int cols) {
+			final int length = text.length();
+			for (int r = 0; r < runStarts.size(); r++) {
+				final int end = r + 1 < runStarts.size() ? runStarts.get(r + 1) : length;
+				final String className = runClasses.get(r);
+				if (className != null) {
+					html.append("<span class=\"").append(SafeHtmlUtils.htmlEscape(className)).append("\">");
+				}
+				int pos = runStarts.get(r);
+				while (pos < end) {
+					// Wrap at the column boundaries
+					final int rowEnd = cols > 0 ? Math.min(end, (pos / cols + 1) * cols) : end;
+					html.append(SafeHtmlUtils.htmlEscape(text.substring(pos, rowEnd)));
+					if (cols > 0 && rowEnd % cols == 0 && rowEnd < length) {
+						html.append('\n');
+					}
+					pos = rowEnd;
+				}
+				if (className != null) {
+					html.append("</span>");
+				}
+			}
+		}
+
+		private static boolean equals(final String a, final String b) {
+			return a == null ? b == null : a.equals(b);
+		}
+	}
+
+}
@@ -0,0 +1,198 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommandLineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final StringBuilder log = new StringBuilder();
+
+	@Test
+	public void parse() {
+		final CommandLine line = CommandLine.parse("list \"a | b\" | grep x > out.txt && echo 'ok;' ; done &");
+		assertTrue(line.isBackground());
+		assertEquals("list \"a | b\" | grep x > out.txt && echo 'ok;' ; done", line.getText());
+		assertEquals(3, line.getPipelines().size());
+
+		final CommandLine.Pipeline first = line.getPipelines().get(0);
+		assertEquals(null, first.getOperator());
+		assertArrayEquals(new String[] { "list", "a | b" }, first.getStages().get(0));
+		assertArrayEquals(new String[] { "grep", "x" }, first.getStages().get(1));
+		assertEquals("out.txt", first.getRedirect());
+		assertEquals(CommandLine.Operator.AND, line.getPipelines().get(1).getOperator());
+		assertArrayEquals(new String[] { "echo", "ok;" }, line.getPipelines().get(1).getStages().get(0));
+		assertEquals(CommandLine.Operator.SEQUENCE, line.getPipelines().get(2).getOperator());
+
+		assertTrue(CommandLine.parse("  ").isEmpty());
+		assertTrue(CommandLine.parse("ls ;").isSimple());
+		assertEquals("sleep", CommandLine.parse("sleep&").getText());
+	}
+
+	@Test
+	public void syntaxErrors() {
+		for (final String input : new String[] { "| grep", "ls |", "ls >", "ls && || b", "& ls", "ls & ls", "ls > a | b" }) {
+			try {
+				CommandLine.parse(input);
+				assertTrue("No error for " + input, false);
+			} catch (final IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void pipeStreamsLinesToRedirect() throws IOException {
+		final Console console = createConsole();
+		console.parseAndExecuteCommand("count 20 | grep 7 > out.txt");
+		assertEquals("7\n17\n", read(new File(folder.getRoot(), "out.txt")));
+	}
+
+	@Test
+	public void plainStagesRunInOrder() throws IOException {
+		final Console console = createConsole();
+		console.parseAndExecuteCommand("log a | log b > out.txt");
+		assertEquals("ab", log.toString());
+		assertEquals("b\n", read(new File(folder.getRoot(), "out.txt")));
+	}
+
+	@Test
+	public void appendIsCaptured() throws IOException {
+		final Console console = createConsole();
+		console.parseAndExecuteCommand("log a b | grep b > out.txt");
+		assertEquals("a b\n", read(new File(folder.getRoot(), "out.txt")));
+	}
+
+	@Test
+	public void operatorsDependOnStatus() throws IOException {
+		final Console console = createConsole();
+		console.parseAndExecuteCommand("fail && count 1 > and.txt ; fail || count 2 > or.txt");
+		assertFalse(new File(folder.getRoot(), "and.txt").exists());
+		assertEquals("0\n1\n", read(new File(folder.getRoot(), "or.txt")));
+	}
+
+	@Test
+	public void redirectStaysInDirectory() {
+		final Console console = createConsole();
+		console.parseAndExecuteCommand("count 1 > ../out.txt");
+		assertFalse(new File(folder.getRoot().getParentFile(), "out.txt").exists());
+	}
+
+	private Console createConsole() {
+		final Console console = new Console();
+		console.setRedirectDirectory(folder.getRoot());
+		console.addCommand("count", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				final int n = Integer.parseInt(argv[1]);
+				for (int i = 0; i < n - 1; i++) {
+					console.println("" + i);
+				}
+				// The result is the last line
+				return n - 1;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		console.addCommand("grep", new Console.StreamingCommand() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Console.Stage open(final Console console, final String[] argv, final Console.LineConsumer output) {
+				return new Console.Stage() {
+
+					@Override
+					public void accept(final String line) throws Exception {
+						if (line.contains(argv[1])) {
+							output.accept(line);
+						}
+					}
+
+					@Override
+					public void close() {
+					}
+				};
+			}
+
+			@Override
+			public Object execute(final Console console, final String[] argv) {
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		console.addCommand("log", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				for (int i = 1; i < argv.length; i++) {
+					log.append(argv[i]);
+					console.append(i > 1 ? " " + argv[i] : argv[i]);
+				}
+				console.newLine();
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		console.addCommand("fail", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				throw new IllegalStateException("failed");
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		return console;
+	}
+
+	private static String read(final File file) throws IOException {
+		final Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try {
+			final StringBuilder s = new StringBuilder();
+			final char[] buffer = new char[1024];
+			int n;
+			while ((n = reader.read(buffer)) > 0) {
+				s.append(buffer, 0, n);
+			}
+			return s.toString();
+		} finally {
+			reader.close();
+		}
+	}
+}
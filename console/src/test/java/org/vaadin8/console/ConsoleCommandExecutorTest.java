@@ -0,0 +1,107 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConsoleCommandExecutorTest {
+
+	@Test
+	public void cancelInterruptsRunningCommand() throws InterruptedException {
+		final SleepCommand sleep = new SleepCommand();
+		final ExecutorService executor = Console.newCommandExecutor();
+		final Console console = new Console();
+		console.setCommandExecutor(executor);
+		console.addCommand("sleep", sleep);
+		try {
+			console.handleInput("sleep");
+			assertTrue(sleep.started.await(5, TimeUnit.SECONDS));
+			assertTrue(console.isCommandRunning());
+			assertTrue(console.getState(false).busy);
+
+			console.cancelCommand();
+			assertTrue(sleep.interrupted.await(5, TimeUnit.SECONDS));
+			assertFalse(console.isCommandRunning());
+			assertFalse(console.getState(false).busy);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void detachedConsoleIsChangedLocked() throws InterruptedException {
+		final CountDownLatch executed = new CountDownLatch(1);
+		final ExecutorService executor = Console.newCommandExecutor();
+		final Console console = new Console();
+		console.setCommandExecutor(executor);
+		console.addCommand("greet", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				console.setGreeting("hello");
+				console.append("x");
+				executed.countDown();
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		try {
+			console.handleInput("greet");
+			assertTrue(executed.await(5, TimeUnit.SECONDS));
+			// Applied when attached
+			assertEquals("Console ready.", console.getGreeting());
+			assertTrue(console.getOutputSink().getQueued().size() >= 2);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void executorCallsExecuteCommand() throws InterruptedException {
+		final CountDownLatch executed = new CountDownLatch(1);
+		final ExecutorService executor = Console.newCommandExecutor();
+		final Console console = new Console() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected String executeCommand(final Command cmd, final String[] argv) {
+				executed.countDown();
+				return super.executeCommand(cmd, argv);
+			}
+		};
+		console.setCommandExecutor(executor);
+		console.addCommand("true", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		try {
+			console.handleInput("true");
+			assertTrue(executed.await(5, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ConsolePublisherTest {
+
+	@Test
+	public void demandLimitedToWindow() throws InterruptedException {
+		final ConsolePublisher publisher = new ConsolePublisher();
+		final ConsoleSubscriber subscriber = new Console().createSubscriber(2);
+		publisher.subscribe(subscriber);
+
+		// Not rendered, so no more demand after the window
+		assertTrue(publisher.offer("a", 10, TimeUnit.MILLISECONDS));
+		assertTrue(publisher.offer("b", 10, TimeUnit.MILLISECONDS));
+		assertFalse(publisher.offer("c", 10, TimeUnit.MILLISECONDS));
+
+		subscriber.cancel();
+		assertFalse(publisher.submit("d"));
+	}
+}
@@ -0,0 +1,36 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ConsoleResizeTest {
+
+	@Test
+	public void sizeChangeFiredOnlyWhenChanged() {
+		final Console console = new Console();
+		final List<Console.SizeChangeEvent> events = new ArrayList<Console.SizeChangeEvent>();
+		console.addSizeChangeListener(new Console.SizeChangeListener() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void sizeChanged(final Console.SizeChangeEvent event) {
+				events.add(event);
+			}
+		});
+		console.handleResize(80, 24, null, null);
+		console.handleResize(80, 24, "640px", "384px");
+		console.setCols(100);
+		console.setCols(100);
+
+		assertEquals(2, events.size());
+		assertEquals(80, events.get(0).getCols());
+		assertEquals(24, events.get(0).getRows());
+		assertEquals(100, events.get(1).getCols());
+		assertEquals(640f, console.getWidth(), 0f);
+	}
+}
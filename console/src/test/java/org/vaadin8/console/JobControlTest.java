@@ -0,0 +1,127 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class JobControlTest {
+
+	@Test
+	public void killInterruptsJob() throws InterruptedException {
+		final SleepCommand sleep = new SleepCommand();
+		final ExecutorService executor = Console.newJobExecutor(2);
+		final Console console = new Console();
+		console.setJobExecutor(executor);
+		console.addCommand("sleep", sleep);
+		try {
+			console.handleInput("sleep 10 &");
+			assertTrue(sleep.started.await(5, TimeUnit.SECONDS));
+			assertEquals(1, console.getJobs().size());
+			assertEquals(1, console.getJobs().get(0).getId());
+			assertEquals("sleep 10", console.getJobs().get(0).getCommandLine());
+			assertTrue(console.getJobs().get(0).isStarted());
+
+			console.handleInput("kill %1");
+			assertTrue(sleep.interrupted.await(5, TimeUnit.SECONDS));
+			assertTrue(console.getJobs().isEmpty());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void jobOutputIsTaggedByLine() throws Exception {
+		final Console console = new Console();
+		final ConsoleJob job = new ConsoleJob(2, "log", console.getOutputSink());
+		job.execute(console, new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				console.append("a");
+				console.print("b");
+				console.newLine();
+				console.append("c", "red");
+				console.append("d");
+				console.newLineIfNotEndsWithNewLine();
+				console.newLineIfNotEndsWithNewLine();
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		}, new String[] { "log" });
+
+		final List<ConsoleOutputSink.Output> queued = console.getOutputSink().getQueued();
+		assertEquals(2, queued.size());
+		assertEquals("[2] ab", queued.get(0).getText());
+		assertEquals("[2] cd", queued.get(1).getText());
+		assertArrayEquals(new String[] { "[2] ", "c", "d" }, queued.get(1).texts);
+		assertArrayEquals(new String[] { null, "red", null }, queued.get(1).classNames);
+		assertEquals(2, job.getOutputLines());
+	}
+
+	@Test
+	public void builtinsOnlyOnTheirOwn() {
+		final ExecutorService executor = Console.newJobExecutor(2);
+		final StringBuilder output = new StringBuilder();
+		final Console console = createRecordingConsole(output);
+		console.setJobExecutor(executor);
+		try {
+			console.parseAndExecuteCommand("jobs | jobs");
+			assertEquals("ERROR: jobs: only allowed as a command of its own\n", output.toString());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void backgroundWithoutJobControl() {
+		final StringBuilder output = new StringBuilder();
+		final Console console = createRecordingConsole(output);
+		console.addCommand("echo", new Console.Command() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Object execute(final Console console, final String[] argv) throws Exception {
+				console.println(argv[1]);
+				return null;
+			}
+
+			@Override
+			public String getUsage(final Console console, final String[] argv) {
+				return null;
+			}
+		});
+		console.parseAndExecuteCommand("echo hi &");
+		assertEquals("WARNING: job control is not enabled, running in the foreground\nhi\n", output.toString());
+	}
+
+	private static Console createRecordingConsole(final StringBuilder output) {
+		return new Console() {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void println(final String string) {
+				output.append(string).append('\n');
+			}
+		};
+	}
+
+	@Test
+	public void formatElapsed() {
+		assertEquals("0:05", JobControl.formatElapsed(5400));
+		assertEquals("1:02:03", JobControl.formatElapsed(3723000));
+	}
+}
@@ -0,0 +1,67 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class OutputGovernorTest {
+
+	@Test
+	public void dropReplacesLinesWithMarker() {
+		final ConsoleOutputSink sink = new Console().getOutputSink();
+		sink.setGovernor(new OutputGovernor(OutputGovernor.Policy.DROP, 3, 0));
+		for (int i = 0; i < 10; i++) {
+			sink.println("line " + i);
+		}
+		// Three lines and one marker
+		assertEquals(4, sink.getQueuedCount());
+	}
+
+	@Test
+	public void dropReportsCharacters() {
+		final ConsoleOutputSink sink = new Console().getOutputSink();
+		sink.setGovernor(new OutputGovernor(OutputGovernor.Policy.DROP, 0, 10));
+		for (int i = 0; i < 4; i++) {
+			sink.print("12345");
+		}
+		final List<ConsoleOutputSink.Output> queued = sink.getQueued();
+		assertEquals(3, queued.size());
+		assertEquals("10 characters suppressed", queued.get(2).getText());
+	}
+
+	@Test
+	public void keepNewestHoldsLines() {
+		final ConsoleOutputSink sink = new Console().getOutputSink();
+		final OutputGovernor governor = new OutputGovernor(OutputGovernor.Policy.KEEP_NEWEST, 3, 0);
+		sink.setGovernor(governor);
+		for (int i = 0; i < 10; i++) {
+			sink.println("line " + i);
+		}
+		// First three written, newest three held until the next window
+		assertEquals(3, sink.getQueuedCount());
+		assertEquals(3, governor.getHeldCount());
+
+		governor.roll(sink, System.currentTimeMillis() + 1000);
+		assertEquals(0, governor.getHeldCount());
+		final List<ConsoleOutputSink.Output> queued = sink.getQueued();
+		assertEquals(7, queued.size());
+		assertEquals("4 lines suppressed", queued.get(3).getText());
+		assertEquals("line 7", queued.get(4).getText());
+		assertEquals("line 8", queued.get(5).getText());
+		assertEquals("line 9", queued.get(6).getText());
+	}
+
+	@Test
+	public void collapseRepeats() {
+		final ConsoleOutputSink sink = new Console().getOutputSink();
+		sink.setGovernor(new OutputGovernor(OutputGovernor.Policy.COLLAPSE_REPEATS, 0, 0));
+		for (int i = 0; i < 10; i++) {
+			sink.println("same");
+		}
+		sink.println("other");
+		// The line, one marker and the other line
+		assertEquals(3, sink.getQueuedCount());
+	}
+}
@@ -0,0 +1,148 @@
+package org.vaadin8.console;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ScrollbackTest {
+
+	private final Scrollback scrollback = new Scrollback();
+
+	private String text(final long from, final long to) {
+		final OutputBatch batch = new OutputBatch();
+		scrollback.writeTo(batch, from, to);
+		return batch.getText();
+	}
+
+	@Test
+	public void linesAndOpenLine() {
+		scrollback.append("one\ntwo\nthr", null);
+		scrollback.append("ee", "c");
+		assertEquals(3, scrollback.getLineCount());
+		assertTrue(scrollback.isLastLineOpen());
+		assertEquals("one\ntwo\nthree", text(0, 3));
+		assertEquals("two\n", text(1, 2));
+		scrollback.newLine();
+		assertFalse(scrollback.isLastLineOpen());
+	}
+
+	@Test
+	public void spilledLineTruncatedOnCharacterBoundary() throws Exception {
+		final StringBuilder s = new StringBuilder("a");
+		while (s.length() < ScrollbackFile.SEGMENT_BYTES / 2 + 2) {
+			s.append('\u00e4');
+		}
+		final byte[] data = s.toString().getBytes("UTF-8");
+		final ScrollbackFile file = new ScrollbackFile(0);
+		try {
+			// The second run starts after the end of the truncated line
+			file.appendLine(data, 0, data.length, new int[] { 0, data.length - 2 }, new String[] { null, "c" }, 2);
+			final OutputBatch batch = new OutputBatch();
+			file.writeLineTo(batch, 0);
+			final String text = batch.getText();
+			assertEquals('\u00e4', text.charAt(text.length() - 2));
+			assertTrue(text.length() < s.length());
+			assertFalse(Arrays.asList(batch.getClassNames()).contains("c"));
+		} finally {
+			file.close();
+		}
+	}
+
+	@Test
+	public void utf8RoundTrip() {
+		final String s = "aä€😀z";
+		scrollback.append(s, null);
+		assertEquals(1 + 2 + 3 + 4 + 1, scrollback.getDataLength());
+		assertEquals(s, text(0, 1));
+	}
+
+	@Test
+	public void styleRuns() {
+		scrollback.append("a", "red");
+		scrollback.append("b\nc", "red");
+		scrollback.append("d", null);
+		final OutputBatch batch = new OutputBatch();
+		scrollback.writeTo(batch, 0, 2);
+		assertEquals("ab\ncd", batch.getText());
+		assertArrayEquals(new String[] { "red" }, batch.getClassNames());
+		assertArrayEquals(new int[] { 1, 4, 0, 1, 5, -1 }, batch.getRuns());
+	}
+
+	@Test
+	public void trimKeepsNewestLines() {
+		for (int i = 0; i < 100; i++) {
+			scrollback.append(i + "\n", i % 2 == 0 ? "even" : null);
+		}
+		scrollback.trim(10);
+		assertEquals(10, scrollback.getLineCount());
+		assertEquals(91, scrollback.getFirstLine());
+		assertEquals("98\n99\n", text(98, 101));
+		final OutputBatch batch = new OutputBatch();
+		scrollback.writeTo(batch, 92, 93);
+		assertArrayEquals(new String[] { "even" }, batch.getClassNames());
+	}
+
+	@Test
+	public void clearKeepsLineNumbers() {
+		scrollback.append("a\nb", null);
+		scrollback.clear();
+		assertTrue(scrollback.isEmpty());
+		assertEquals(2, scrollback.getFirstLine());
+	}
+
+	@Test
+	public void diskSpill() {
+		scrollback.setDiskSpill(true);
+		try {
+			for (int i = 0; i < 3000; i++) {
+				scrollback.append(i + "\n", i % 2 == 0 ? "even" : null);
+				scrollback.trim(2000);
+			}
+			assertEquals(2000, scrollback.getLineCount());
+			assertTrue(scrollback.getDataLength() < 2 * Scrollback.HOT_LINES * 5);
+			final OutputBatch batch = new OutputBatch();
+			scrollback.writeTo(batch, 1001, 1003);
+			assertEquals("1001\n1002\n", batch.getText());
+			assertArrayEquals(new String[] { "even" }, batch.getClassNames());
+		} finally {
+			scrollback.close();
+		}
+	}
+
+	@Test
+	public void serializationDropsDiskLines() throws Exception {
+		scrollback.setDiskSpill(true);
+		try {
+			for (int i = 0; i < 3000; i++) {
+				scrollback.append(i + "\n", null);
+				scrollback.trim(2000);
+			}
+			final long firstLine = scrollback.getFirstLine();
+
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(scrollback);
+			out.close();
+			final Scrollback copy = (Scrollback) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))
+					.readObject();
+
+			// Files deleted, so the lines are gone from both
+			assertTrue(scrollback.getFirstLine() > firstLine);
+			assertTrue(scrollback.getLineCount() <= Scrollback.HOT_LINES + Scrollback.HOT_LINES / 4 + 1);
+			assertEquals(scrollback.getFirstLine(), copy.getFirstLine());
+			assertEquals(scrollback.getEndLine(), copy.getEndLine());
+			assertTrue(copy.isDiskSpill());
+		} finally {
+			scrollback.close();
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package org.vaadin8.console;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Command sleeping until interrupted, for tests of commands run on other
+ * threads.
+ */
+class SleepCommand implements Console.Command {
+
+	private static final long serialVersionUID = 1L;
+
+	final CountDownLatch started = new CountDownLatch(1);
+	final CountDownLatch interrupted = new CountDownLatch(1);
+
+	@Override
+	public Object execute(final Console console, final String[] argv) throws Exception {
+		started.countDown();
+		try {
+			Thread.sleep(10000);
+		} catch (final InterruptedException e) {
+			interrupted.countDown();
+		}
+		return null;
+	}
+
+	@Override
+	public String getUsage(final Console console, final String[] argv) {
+		return null;
+	}
+}
@@ -0,0 +1,68 @@
+package org.vaadin8.console.ansi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ANSITokenizerTest {
+
+	private final ANSITokenizer tokenizer = new ANSITokenizer(new DefaultANSICodeConverter());
+
+	private List<String> tokenize(final String input) {
+		final List<String> runs = new ArrayList<String>();
+		tokenizer.tokenize(input, new ANSITokenizer.Handler() {
+
+			@Override
+			public void text(final String text, final String cssClasses) {
+				runs.add(cssClasses == null ? text : text + "|" + cssClasses);
+			}
+		});
+		return runs;
+	}
+
+	@Test
+	public void plainText() {
+		assertEquals("[plain]", tokenize("plain").toString());
+	}
+
+	@Test
+	public void attributesAccumulate() {
+		assertEquals("[a, b|term-font-weight-bolder term-color-red, c|term-font-weight-bolder term-color-green, d|term-color-green]",
+				tokenize("a\033[01;31mb\033[32mc\033[22md").toString());
+		assertEquals("[x|term-font-weight-bolder term-color-blue]", tokenize("\033[1m\033[34mx\033[0m").toString());
+	}
+
+	@Test
+	public void finalByteIsNotPartOfText() {
+		assertEquals("[more|term-font-weight-bolder]", tokenize("\033[1mmore").toString());
+	}
+
+	@Test
+	public void otherControlSequencesAreDropped() {
+		assertEquals("[a, b]", tokenize("a\033[2Kb").toString());
+	}
+
+	@Test
+	public void escapeWithoutSequenceIsText() {
+		assertEquals("[a\033b]", tokenize("a\033b").toString());
+	}
+
+	@Test
+	public void attributesSpanChunks() {
+		assertEquals("[a|term-color-red]", tokenize("\033[31ma").toString());
+		assertEquals("[b|term-color-red]", tokenize("b").toString());
+		assertEquals("[c]", tokenize("\033[0mc").toString());
+	}
+
+	@Test
+	public void sequenceSplitAcrossChunks() {
+		assertEquals("[a]", tokenize("a\033").toString());
+		assertEquals("[]", tokenize("[3").toString());
+		assertEquals("[b|term-color-yellow]", tokenize("3mb").toString());
+		tokenizer.reset();
+		assertEquals("[c]", tokenize("c").toString());
+	}
+}
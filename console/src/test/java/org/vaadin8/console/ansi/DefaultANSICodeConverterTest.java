@@ -0,0 +1,26 @@
+package org.vaadin8.console.ansi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class DefaultANSICodeConverterTest {
+
+	private final DefaultANSICodeConverter converter = new DefaultANSICodeConverter();
+
+	@Test
+	public void basicCodes() {
+		assertEquals("term-font-weight-bolder term-color-red", converter.convertANSIToCSS("\033[01;31m"));
+		assertEquals("term-background-color-aqua", converter.convertANSIToCSS("\033[106m"));
+		assertEquals("", converter.convertANSIToCSS("\033[m"));
+		assertEquals("", converter.convertANSIToCSS("not a sequence"));
+	}
+
+	@Test
+	public void extendedColors() {
+		assertEquals("term-color-red", converter.convertANSIToCSS("\033[38;5;1m"));
+		assertEquals("term-color-orange term-font-weight-bolder", converter.convertANSIToCSS("\033[38;5;214;1m"));
+		assertEquals("term-background-color-navy", converter.convertANSIToCSS("\033[48;2;0;0;120m"));
+		assertEquals("term-color-gray", converter.convertANSIToCSS("\033[38;5;244m"));
+	}
+}
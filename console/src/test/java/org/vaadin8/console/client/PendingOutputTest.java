@@ -0,0 +1,36 @@
+package org.vaadin8.console.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class PendingOutputTest {
+
+	@Test
+	public void collapseKeepsLastLines() {
+		final PendingOutput pending = new PendingOutput();
+		pending.write("a\nb\n", new int[] { ConsoleClientRpc.WRITE_PRINT, 4, 0 }, new String[] { "x" });
+		pending.write("c\nd", new int[] { ConsoleClientRpc.WRITE_APPEND, 3, -1 }, new String[0]);
+		pending.collapse(2);
+
+		assertTrue(pending.isCollapsed());
+		assertTrue(pending.isPrinted());
+		assertEquals("b\nc\nd", pending.getText());
+		assertArrayEquals(new int[] { ConsoleClientRpc.WRITE_APPEND, 2, 0, ConsoleClientRpc.WRITE_APPEND, 5, -1 },
+				pending.getRuns());
+		assertArrayEquals(new String[] { "x" }, pending.getClassNames());
+	}
+
+	@Test
+	public void collapseWithinLimitKeepsAll() {
+		final PendingOutput pending = new PendingOutput();
+		pending.write("a\n", new int[] { ConsoleClientRpc.WRITE_APPEND, 2, -1 }, new String[0]);
+		pending.collapse(2);
+
+		assertFalse(pending.isCollapsed());
+		assertEquals("a\n", pending.getText());
+	}
+}